@@ -4,8 +4,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.*;
+import org.telegram.telegrambots.meta.api.methods.pinnedmessages.PinChatMessage;
+import org.telegram.telegrambots.meta.api.methods.pinnedmessages.UnpinChatMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendChatAction;
+import org.telegram.telegrambots.meta.api.methods.send.SendContact;
+import org.telegram.telegrambots.meta.api.methods.send.SendDice;
+import org.telegram.telegrambots.meta.api.methods.send.SendLocation;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaBotMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendVenue;
 import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessages;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageCaption;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageLiveLocation;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageMedia;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageReplyMarkup;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.Update;
@@ -13,24 +29,39 @@ import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import ru.ndfle.bot.db.AssignmentRepository;
 import ru.ndfle.bot.db.ContextRepository;
 import ru.ndfle.bot.db.ReviewRepository;
+import ru.ndfle.bot.db.UploadRepository;
 import ru.ndfle.bot.db.UserRepository;
 import ru.ndfle.bot.model.ConversationState;
+import ru.ndfle.bot.outbound.OutboundScheduler;
+import ru.ndfle.bot.outbound.Priority;
 import ru.ndfle.bot.model.UserContext;
 import ru.ndfle.bot.service.AdminService;
+import ru.ndfle.bot.service.AssignmentService;
 import ru.ndfle.bot.service.MediaService;
 import ru.ndfle.bot.service.NavigationService;
+import ru.ndfle.bot.service.NotificationService;
 import ru.ndfle.bot.service.SurveyService;
+import ru.ndfle.bot.service.UploadRelay;
+import ru.ndfle.bot.update.Router;
+import ru.ndfle.bot.update.UpdateDispatcher;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class EkaterinaBot extends TelegramLongPollingBot {
     private static final Logger log = LoggerFactory.getLogger(EkaterinaBot.class);
 
+    // Отзывы с такой оценкой и ниже админ видит сразу, мимо сводки
+    private static final int URGENT_REVIEW_STARS = 2;
+
     // ИП: ссылка Rutube (вместо отправки видео)
     private static final String XML_RUTUBE_URL = "https://rutube.ru/video/7eebce5e241d7c12d0b4bfb7175c906b/?r=a";
 
@@ -69,9 +100,14 @@ public class EkaterinaBot extends TelegramLongPollingBot {
     private final AdminService adminService;
     private final ReviewRepository reviewRepository;
     private final MediaService mediaService;
-
-    // Anti-spam for upload acknowledgements
-    private final Map<Long, Long> lastUploadAckAt = new ConcurrentHashMap<>();
+    private final UpdateDispatcher updateDispatcher;
+    private final OutboundScheduler outbound;
+    private final Router<Command> commands;
+    private final Router<Callback> callbacks;
+    private final UploadRelay uploadRelay;
+    private final UploadRepository uploadRepository;
+    private final AssignmentService assignmentService;
+    private final NotificationService notifications;
 
     public EkaterinaBot(String botToken,
                         String botUsername,
@@ -81,7 +117,13 @@ public class EkaterinaBot extends TelegramLongPollingBot {
                         SurveyService surveyService,
                         AdminService adminService,
                         ReviewRepository reviewRepository,
-                        MediaService mediaService) {
+                        MediaService mediaService,
+                        UpdateDispatcher updateDispatcher,
+                        OutboundScheduler outbound,
+                        UploadRelay uploadRelay,
+                        UploadRepository uploadRepository,
+                        AssignmentService assignmentService,
+                        NotificationService notifications) {
         super(botToken);
         this.botUsername = botUsername;
         this.userRepository = userRepository;
@@ -91,6 +133,14 @@ public class EkaterinaBot extends TelegramLongPollingBot {
         this.adminService = adminService;
         this.reviewRepository = reviewRepository;
         this.mediaService = mediaService;
+        this.updateDispatcher = updateDispatcher;
+        this.outbound = outbound;
+        this.uploadRelay = uploadRelay;
+        this.uploadRepository = uploadRepository;
+        this.assignmentService = assignmentService;
+        this.notifications = notifications;
+        this.commands = commandRoutes();
+        this.callbacks = callbackRoutes();
     }
 
     @Override
@@ -100,13 +150,24 @@ public class EkaterinaBot extends TelegramLongPollingBot {
 
     @Override
     public void onUpdateReceived(Update update) {
+        // Same user — strictly in order, different users — in parallel
+        updateDispatcher.dispatch(update, () -> handleUpdate(update));
+    }
+
+    private void handleUpdate(Update update) {
         try {
-            if (update.hasCallbackQuery()) {
-                handleCallback(update.getCallbackQuery());
-                return;
-            }
-            if (update.hasMessage()) {
-                handleMessage(update.getMessage());
+            // All context saves of this update are flushed once, changed columns only
+            ContextRepository.UnitOfWork uow = contextRepository.beginUnitOfWork();
+            try {
+                if (update.hasCallbackQuery()) {
+                    handleCallback(update.getCallbackQuery());
+                    return;
+                }
+                if (update.hasMessage()) {
+                    handleMessage(update.getMessage());
+                }
+            } finally {
+                uow.close();
             }
         } catch (Exception e) {
             log.error("Update handling error", e);
@@ -125,60 +186,9 @@ public class EkaterinaBot extends TelegramLongPollingBot {
 
         // ✅ ВАЖНО: команды обрабатываем ПЕРВЫМИ (даже если ждём документы)
         if (text != null && text.startsWith("/")) {
-            String[] parts = text.trim().split("\\s+");
-            String cmd = parts[0].toLowerCase(Locale.ROOT);
-
-            switch (cmd) {
-                case "/start" -> {
-                    contextRepository.resetAll(ctx);
-                    executeSafely(navigationService.toMenu(chatId, ctx));
-                }
-                case "/admin" -> {
-                    if (!adminService.isAdmin(userId)) {
-                        executeSafely(simple(chatId, "⛔ <b>Нет доступа.</b>"));
-                        return;
-                    }
-                    executeSafely(navigationService.goTo(chatId, ctx, "admin_panel"));
-                }
-                case "/admin_list" -> {
-                    if (!adminService.isAdmin(userId)) {
-                        executeSafely(simple(chatId, "⛔ <b>Нет доступа.</b>"));
-                        return;
-                    }
-                    executeSafely(adminService.handleAction(chatId, ctx, "A:ADMINS"));
-                }
-                case "/admin_add" -> {
-                    if (!adminService.isAdmin(userId)) {
-                        executeSafely(simple(chatId, "⛔ <b>Нет доступа.</b>"));
-                        return;
-                    }
-                    if (parts.length < 2) {
-                        executeSafely(simple(chatId, "Использование: <code>/admin_add &lt;telegram_id&gt;</code>"));
-                        return;
-                    }
-                    long id = Long.parseLong(parts[1]);
-                    boolean added = adminService.addAdmin(id);
-                    executeSafely(simple(chatId, added
-                            ? "✅ Админ добавлен: <code>" + id + "</code>"
-                            : "⚠️ Не удалось добавить (возможно, уже админ): <code>" + id + "</code>"));
-                }
-                case "/admin_del" -> {
-                    if (!adminService.isAdmin(userId)) {
-                        executeSafely(simple(chatId, "⛔ <b>Нет доступа.</b>"));
-                        return;
-                    }
-                    if (parts.length < 2) {
-                        executeSafely(simple(chatId, "Использование: <code>/admin_del &lt;telegram_id&gt;</code>"));
-                        return;
-                    }
-                    long id = Long.parseLong(parts[1]);
-                    boolean removed = adminService.removeAdmin(id);
-                    executeSafely(simple(chatId, removed
-                            ? "✅ Админ удалён: <code>" + id + "</code>"
-                            : "⚠️ Не удалось удалить (возможно, не админ): <code>" + id + "</code>"));
-                }
-                default -> executeSafely(navigationService.toMenu(chatId, ctx));
-            }
+            int end = Router.tokenEnd(text, 0);
+            String cmd = text.substring(0, end).toLowerCase(Locale.ROOT);
+            commands.dispatch(new Command(chatId, userId, ctx, text, Router.skipSpaces(text, end)), cmd);
             return;
         }
 
@@ -197,15 +207,12 @@ public class EkaterinaBot extends TelegramLongPollingBot {
             SurveyService.SurveyResult res = surveyService.finishBkWithText(chatId, ctx, msg.getFrom(), text);
             executeSafely(res.toUser());
 
-            if (res.adminHtml() != null && res.adminIds() != null) {
-                for (Long adminId : res.adminIds()) {
-                    SendMessage sm = new SendMessage();
-                    sm.setChatId(adminId);
-                    sm.setText(res.adminHtml());
-                    sm.setParseMode(ParseMode.HTML);
-                    sm.setDisableWebPagePreview(true);
-                    executeSafely(sm);
-                }
+            if (res.request() != null) {
+                res.request().thenAccept(req -> {
+                    // Insert failed (already logged): nothing to route an admin to
+                    if (req == null) return;
+                    notifyAssigned(AssignmentRepository.Kind.BK, req.id(), userId, req.adminHtml(), null, req.urgent());
+                });
             }
             return;
         }
@@ -219,18 +226,17 @@ public class EkaterinaBot extends TelegramLongPollingBot {
             int stars = ctx.reviewStars <= 0 ? 5 : ctx.reviewStars;
             String comment = text.trim();
 
-            long reviewId = reviewRepository.insert(userId, stars, comment);
-
-            // Notify admins
-            String adminHtml = buildReviewAdminMessage(reviewId, msg.getFrom(), stars, comment);
-            for (Long adminId : adminService.listAdmins()) {
-                SendMessage sm = new SendMessage();
-                sm.setChatId(adminId);
-                sm.setText(adminHtml);
-                sm.setParseMode(ParseMode.HTML);
-                sm.setDisableWebPagePreview(true);
-                executeSafely(sm);
-            }
+            // Notify the client's admin once the review row has its id; the user's reply doesn't wait for it.
+            // Low ratings skip the digest
+            User author = msg.getFrom();
+            reviewRepository.insert(userId, stars, comment).thenAccept(reviewId -> {
+                if (reviewId < 0) {
+                    log.warn("review of {} was not saved, admins are not notified", userId);
+                    return;
+                }
+                notifyAssigned(AssignmentRepository.Kind.REVIEW, reviewId, userId,
+                        buildReviewAdminMessage(reviewId, author, stars, comment), null, stars <= URGENT_REVIEW_STARS);
+            });
 
             // Reset review state and show menu
             ctx.state = ConversationState.NONE;
@@ -253,25 +259,7 @@ public class EkaterinaBot extends TelegramLongPollingBot {
                 return;
             }
 
-            var br = adminService.performBroadcast(chatId, ctx, text);
-
-            int ok = 0;
-            int fail = 0;
-            for (Long uid : br.userIds()) {
-                SendMessage sm = new SendMessage();
-                sm.setChatId(uid);
-                sm.setText(br.htmlText());
-                sm.setParseMode(ParseMode.HTML);
-                sm.setDisableWebPagePreview(true);
-                try {
-                    execute(sm);
-                    ok++;
-                } catch (Exception ex) {
-                    fail++;
-                }
-            }
-
-            executeSafely(simple(chatId, "✅ Рассылка завершена.\n\nУспешно: <b>" + ok + "</b>\nОшибок: <b>" + fail + "</b>"));
+            executeSafely(adminService.performBroadcast(chatId, ctx, text));
             return;
         }
 
@@ -294,48 +282,110 @@ public class EkaterinaBot extends TelegramLongPollingBot {
             return;
         }
 
-        String header = buildUploadHeader(u);
+        // Albums and back-to-back files are recorded as one burst: see relayUploads
+        uploadRelay.accept(chatId, u, msg);
+    }
+
+    /**
+     * Пачка файлов клиента пишется во входящие; админы получают одно короткое уведомление
+     * на сессию клиента, сами файлы открываются из входящих. Клиенту — одно подтверждение.
+     */
+    public void relayUploads(UploadRelay.Burst burst) {
+        List<UploadRepository.NewFile> files = new ArrayList<>(burst.messages().size());
+        for (Message m : burst.messages()) {
+            UploadRepository.NewFile f = fileOf(m);
+            if (f != null) files.add(f);
+        }
+
+        User from = burst.from();
+        uploadRepository.recordBurst(from.getId(), burst.chatId(), files).whenComplete((rec, e) -> {
+            if (e != null) {
+                // Inbox unavailable: don't lose the documents, hand them to admins directly
+                log.warn("record uploads failed, forwarding directly: {}", rootCause(e).toString());
+                forwardToAdmins(buildUploadHeader(from, files.size()), burst.chatId(), burst.messageIds());
+                return;
+            }
+            if (!rec.newSession()) return;
+            notifyAssigned(AssignmentRepository.Kind.UPLOAD, rec.sessionId(), from.getId(),
+                    buildUploadHeader(from, files.size()) + "\nФайлы — во «📂 Входящие документы».",
+                    singleButton("📂 Открыть файлы", "A:UP:S:" + rec.sessionId()), false);
+        });
+
+        SendMessage ack = new SendMessage();
+        ack.setChatId(burst.chatId());
+        ack.setText("✅ Документы получены и отправлены юристу.\n\nМожете отправить ещё файлы или нажмите кнопку ниже 👇");
+        ack.setParseMode(ParseMode.HTML);
+        ack.setReplyMarkup(menuOnlyMarkup());
+        executeSafely(ack);
+    }
+
+    /**
+     * Уведомление админу, за которым закреплён клиент (событие встаёт в его очередь).
+     * Если распределить не удалось — как раньше, всем админам: событие не должно потеряться.
+     * Несрочное может уйти в сводку (NOTIFY_MODE=digest).
+     */
+    private void notifyAssigned(AssignmentRepository.Kind kind, long refId, long userId, String html,
+                                InlineKeyboardMarkup markup, boolean urgent) {
+        assignmentService.route(kind, refId, userId).whenComplete((adminId, e) -> {
+            if (e != null) log.warn("assign {} #{} failed, notifying all admins: {}", kind, refId, rootCause(e).toString());
+            long[] targets = e == null ? (adminId > 0 ? new long[]{adminId} : new long[0]) : adminService.listAdmins();
+            for (long target : targets) notifications.notify(target, html, markup, urgent);
+        });
+    }
+
+    /** Уведомление или сводка админу; отправитель для {@link NotificationService}. */
+    public void sendNotification(long chatId, String html, InlineKeyboardMarkup markup) {
+        SendMessage sm = simple(chatId, html);
+        if (markup != null) sm.setReplyMarkup(markup);
+        executeSafely(sm, Priority.ADMIN_NOTIFY);
+    }
 
-        for (Long adminId : adminService.listAdmins()) {
-            // header
+    /** Заголовок и сами сообщения (forwardMessages по 100) каждому админу. */
+    private void forwardToAdmins(String header, long fromChatId, List<Integer> messageIds) {
+        for (long adminId : adminService.listAdmins()) {
             SendMessage sm = new SendMessage();
             sm.setChatId(adminId);
             sm.setText(header);
             sm.setParseMode(ParseMode.HTML);
             sm.setDisableWebPagePreview(true);
-            executeSafely(sm);
+            executeSafely(sm, Priority.ADMIN_NOTIFY);
+            forwardAll(adminId, fromChatId, messageIds, Priority.ADMIN_NOTIFY);
+        }
+    }
 
-            // forward media
-            try {
-                ForwardMessage fm = new ForwardMessage();
-                fm.setChatId(adminId);
-                fm.setFromChatId(chatId);
-                fm.setMessageId(msg.getMessageId());
-                execute(fm);
-            } catch (Exception e) {
-                // fallback: copy message (if forward disabled)
-                try {
-                    CopyMessage cm = new CopyMessage();
-                    cm.setChatId(adminId);
-                    cm.setFromChatId(chatId);
-                    cm.setMessageId(msg.getMessageId());
-                    execute(cm);
-                } catch (Exception ignored) {}
-            }
+    private void forwardAll(long toChatId, long fromChatId, List<Integer> messageIds, Priority priority) {
+        for (int i = 0; i < messageIds.size(); i += UploadRelay.MAX_MESSAGES) {
+            List<Integer> chunk = messageIds.subList(i, Math.min(messageIds.size(), i + UploadRelay.MAX_MESSAGES));
+            outbound.submit(toChatId, priority, () -> forwardOrCopyAll(toChatId, fromChatId, chunk));
         }
+    }
 
-        // Acknowledge user (throttled)
-        long now = System.currentTimeMillis();
-        long last = lastUploadAckAt.getOrDefault(ctx.userId, 0L);
-        if (now - last > 4000) {
-            lastUploadAckAt.put(ctx.userId, now);
-            SendMessage ack = new SendMessage();
-            ack.setChatId(chatId);
-            ack.setText("✅ Документы получены и отправлены юристу.\n\nМожете отправить ещё файлы или нажмите кнопку ниже 👇");
-            ack.setParseMode(ParseMode.HTML);
-            ack.setReplyMarkup(menuOnlyMarkup());
-            executeSafely(ack);
+    /** Файл из сообщения клиента (для фото — самый крупный размер). */
+    private static UploadRepository.NewFile fileOf(Message m) {
+        String group = m.getMediaGroupId();
+        int id = m.getMessageId();
+        if (m.hasDocument()) {
+            var d = m.getDocument();
+            return new UploadRepository.NewFile(id, group, "document", d.getFileId(), d.getFileUniqueId(), d.getFileName(), d.getFileSize());
+        }
+        if (m.hasPhoto() && !m.getPhoto().isEmpty()) {
+            var p = m.getPhoto().get(m.getPhoto().size() - 1);
+            Long size = p.getFileSize() == null ? null : p.getFileSize().longValue();
+            return new UploadRepository.NewFile(id, group, "photo", p.getFileId(), p.getFileUniqueId(), null, size);
+        }
+        if (m.hasVideo()) {
+            var v = m.getVideo();
+            return new UploadRepository.NewFile(id, group, "video", v.getFileId(), v.getFileUniqueId(), v.getFileName(), v.getFileSize());
+        }
+        if (m.hasAudio()) {
+            var a = m.getAudio();
+            return new UploadRepository.NewFile(id, group, "audio", a.getFileId(), a.getFileUniqueId(), a.getFileName(), a.getFileSize());
+        }
+        if (m.hasVoice()) {
+            var v = m.getVoice();
+            return new UploadRepository.NewFile(id, group, "voice", v.getFileId(), v.getFileUniqueId(), null, v.getFileSize());
         }
+        return null;
     }
 
     private void handleCallback(CallbackQuery cq) throws TelegramApiException {
@@ -359,147 +409,237 @@ public class EkaterinaBot extends TelegramLongPollingBot {
                 .callbackQueryId(cq.getId())
                 .build());
 
-        if (data.equals("B")) {
-            if (ctx.bkStep > 0) contextRepository.resetBk(ctx);
-            if (ctx.state == ConversationState.DOC_UPLOAD_WAIT_MEDIA) {
-                ctx.state = ConversationState.NONE;
-                contextRepository.save(ctx);
-            }
-            if (canEdit) executeSafely(navigationService.backEdit(chatId, messageId, ctx));
-            else executeSafely(navigationService.back(chatId, ctx));
-            return;
-        }
+        callbacks.dispatch(new Callback(cq, chatId, messageId, canEdit, userId, ctx), data);
+    }
 
-        if (data.equals("M")) {
-            contextRepository.resetAll(ctx);
-            if (canEdit) executeSafely(navigationService.toMenuEdit(chatId, messageId, ctx));
-            else executeSafely(navigationService.toMenu(chatId, ctx));
-            return;
-        }
+    // ---------- commands ----------
 
-        if (data.startsWith("N:")) {
-            String nodeId = data.substring(2);
+    private Router<Command> commandRoutes() {
+        return new Router<Command>()
+                .exact("/start", this::onStartCommand)
+                .exact("/admin", adminOnly(this::onAdminCommand))
+                .exact("/admin_list", adminOnly(this::onAdminListCommand))
+                .exact("/admin_add", adminOnly(this::onAdminAddCommand))
+                .exact("/admin_del", adminOnly(this::onAdminDelCommand))
+                .fallback((c, key, arg) -> executeSafely(navigationService.toMenu(c.chatId(), c.ctx())));
+    }
 
-            if ("admin_panel".equals(nodeId) && !adminService.isAdmin(userId)) {
-                executeSafely(alert(cq.getId(), "⛔ Нет доступа."));
+    private Router.Handler<Command> adminOnly(Router.Handler<Command> handler) {
+        return (c, key, arg) -> {
+            if (!adminService.isAdmin(c.userId())) {
+                executeSafely(simple(c.chatId(), "⛔ <b>Нет доступа.</b>"));
                 return;
             }
+            handler.handle(c, key, arg);
+        };
+    }
 
-            // Leaving upload mode if any
-            if (ctx.state == ConversationState.DOC_UPLOAD_WAIT_MEDIA) {
-                ctx.state = ConversationState.NONE;
-                contextRepository.save(ctx);
-            }
+    private void onStartCommand(Command c, String key, int arg) {
+        contextRepository.resetAll(c.ctx());
+        executeSafely(navigationService.toMenu(c.chatId(), c.ctx()));
+    }
+
+    private void onAdminCommand(Command c, String key, int arg) {
+        executeSafely(navigationService.goTo(c.chatId(), c.ctx(), "admin_panel"));
+    }
+
+    private void onAdminListCommand(Command c, String key, int arg) {
+        executeSafely(adminService.handleAction(c.chatId(), c.ctx(), "A:ADMINS"));
+    }
 
-            if (canEdit) executeSafely(navigationService.goToEdit(chatId, messageId, ctx, nodeId));
-            else executeSafely(navigationService.goTo(chatId, ctx, nodeId));
+    private void onAdminAddCommand(Command c, String key, int arg) {
+        long id = c.longArg(Long.MIN_VALUE);
+        if (id == Long.MIN_VALUE) {
+            executeSafely(simple(c.chatId(), "Использование: <code>/admin_add &lt;telegram_id&gt;</code>"));
             return;
         }
+        boolean added = adminService.addAdmin(id);
+        executeSafely(simple(c.chatId(), added
+                ? "✅ Админ добавлен: <code>" + id + "</code>"
+                : "⚠️ Не удалось добавить (возможно, уже админ): <code>" + id + "</code>"));
+    }
 
-        if (data.equals("BK:START")) {
-            SurveyService.SurveyResult res = surveyService.startBk(chatId, ctx, canEdit ? messageId : null);
-            executeSafely(res.toUser());
+    private void onAdminDelCommand(Command c, String key, int arg) {
+        long id = c.longArg(Long.MIN_VALUE);
+        if (id == Long.MIN_VALUE) {
+            executeSafely(simple(c.chatId(), "Использование: <code>/admin_del &lt;telegram_id&gt;</code>"));
             return;
         }
+        boolean removed = adminService.removeAdmin(id);
+        executeSafely(simple(c.chatId(), removed
+                ? "✅ Админ удалён: <code>" + id + "</code>"
+                : "⚠️ Не удалось удалить (возможно, не админ): <code>" + id + "</code>"));
+    }
 
-        if (data.startsWith("BK:")) {
-            // BK:<step>:<opt>
-            String[] p = data.split(":");
-            if (p.length == 3) {
-                int step = Integer.parseInt(p[1]);
-                String opt = p[2];
-                SurveyService.SurveyResult res = surveyService.answerBk(chatId, ctx, canEdit ? messageId : null, step, opt);
-                executeSafely(res.toUser());
-            }
-            return;
+    // ---------- callbacks ----------
+
+    private Router<Callback> callbackRoutes() {
+        return new Router<Callback>()
+                .exact("B", this::onBack)
+                .exact("M", this::onMenu)
+                .prefix("N:", this::onNode)
+                .exact("BK:START", this::onBkStart)
+                .prefix("BK:", this::onBkAnswer)
+                .prefix("A:", this::onAdminAction)
+                .prefix("A:UP:S:", this::onInboxOpen)
+                .exact("UPLOAD:START", this::onUploadStart)
+                .prefix("REVIEW:STAR:", this::onReviewStar)
+                .exact("MEDIA:VIDEO2", (c, key, arg) -> sendVideo(c.chatId(), MediaService.VIDEO2))
+                .exact("MEDIA:VIDEO1_XML", this::onXmlVideoLink)
+                // ✅ Физлица: отправляем видео 1.mp4
+                .exact("MEDIA:VIDEO1_FL", (c, key, arg) -> sendVideo(c.chatId(), MediaService.VIDEO1));
+    }
+
+    private void onBack(Callback c, String data, int arg) {
+        UserContext ctx = c.ctx();
+        if (ctx.bkStep > 0) contextRepository.resetBk(ctx);
+        if (ctx.state == ConversationState.DOC_UPLOAD_WAIT_MEDIA) {
+            ctx.state = ConversationState.NONE;
+            contextRepository.save(ctx);
         }
+        if (c.canEdit()) executeSafely(navigationService.backEdit(c.chatId(), c.messageId(), ctx));
+        else executeSafely(navigationService.back(c.chatId(), ctx));
+    }
 
-        if (data.startsWith("A:")) {
-            if (!adminService.isAdmin(userId)) {
-                executeSafely(alert(cq.getId(), "⛔ Нет доступа."));
-                return;
-            }
-            BotApiMethod<?> m = adminService.handleAction(chatId, ctx, data);
-            executeSafely(m);
+    private void onMenu(Callback c, String data, int arg) {
+        contextRepository.resetAll(c.ctx());
+        if (c.canEdit()) executeSafely(navigationService.toMenuEdit(c.chatId(), c.messageId(), c.ctx()));
+        else executeSafely(navigationService.toMenu(c.chatId(), c.ctx()));
+    }
+
+    private void onNode(Callback c, String data, int arg) {
+        String nodeId = data.substring(arg);
+        UserContext ctx = c.ctx();
+
+        if ("admin_panel".equals(nodeId) && !adminService.isAdmin(c.userId())) {
+            executeSafely(alert(c.query().getId(), "⛔ Нет доступа."));
             return;
         }
 
-        if (data.equals("UPLOAD:START")) {
-            ctx.state = ConversationState.DOC_UPLOAD_WAIT_MEDIA;
+        // Leaving upload mode if any
+        if (ctx.state == ConversationState.DOC_UPLOAD_WAIT_MEDIA) {
+            ctx.state = ConversationState.NONE;
             contextRepository.save(ctx);
-
-            SendMessage sm = new SendMessage();
-            sm.setChatId(chatId);
-            sm.setText(DOC_UPLOAD_TEXT);
-            sm.setParseMode(ParseMode.HTML);
-            sm.setDisableWebPagePreview(true);
-            sm.setReplyMarkup(menuOnlyMarkup());
-            executeSafely(sm);
-            return;
         }
 
-        if (data.startsWith("REVIEW:STAR:")) {
-            int stars = 5;
-            try {
-                stars = Integer.parseInt(data.substring("REVIEW:STAR:".length()));
-            } catch (Exception ignored) {}
+        if (c.canEdit()) executeSafely(navigationService.goToEdit(c.chatId(), c.messageId(), ctx, nodeId));
+        else executeSafely(navigationService.goTo(c.chatId(), ctx, nodeId));
+    }
 
-            if (stars < 1) stars = 1;
-            if (stars > 5) stars = 5;
+    private void onBkStart(Callback c, String data, int arg) {
+        SurveyService.SurveyResult res = surveyService.startBk(c.chatId(), c.ctx(), c.editMessageId());
+        executeSafely(res.toUser());
+    }
 
-            ctx.reviewStars = stars;
-            ctx.state = ConversationState.REVIEW_WAIT_COMMENT_TEXT;
-            contextRepository.save(ctx);
+    private void onBkAnswer(Callback c, String data, int arg) {
+        // BK:<step>:<opt>
+        int sep = Router.argEnd(data, arg, ':');
+        int step = Router.parseInt(data, arg, sep, -1);
+        if (step < 0 || sep + 1 >= data.length() || Router.argEnd(data, sep + 1, ':') != data.length()) return;
 
-            String starsText = "⭐".repeat(stars);
-            SendMessage sm = new SendMessage();
-            sm.setChatId(chatId);
-            sm.setText("Спасибо! Ваша оценка: <b>" + starsText + "</b>\n\nТеперь напишите, пожалуйста, текстовый комментарий одним сообщением ✍️");
-            sm.setParseMode(ParseMode.HTML);
-            sm.setDisableWebPagePreview(true);
-            executeSafely(sm);
+        String opt = data.substring(sep + 1);
+        SurveyService.SurveyResult res = surveyService.answerBk(c.chatId(), c.ctx(), c.editMessageId(), step, opt);
+        executeSafely(res.toUser());
+    }
+
+    private void onAdminAction(Callback c, String data, int arg) {
+        if (!adminService.isAdmin(c.userId())) {
+            executeSafely(alert(c.query().getId(), "⛔ Нет доступа."));
             return;
         }
+        executeSafely(adminService.handleAction(c.chatId(), c.ctx(), data));
+    }
 
-        if (data.equals("MEDIA:VIDEO2")) {
-            // Send 2.mp4 (как было)
-            SendVideo sv = mediaService.buildVideo(chatId, "video2", "2.mp4", null, menuOnlyMarkup());
-            try {
-                Message sent = execute(sv);
-                mediaService.updateCacheFromSentMessage("video2", sent);
-            } catch (Exception e) {
-                log.warn("send video2 failed: {}", e.toString());
-                executeSafely(simple(chatId, "⚠️ Не удалось отправить видео. Проверьте, что файл <code>media/2.mp4</code> существует на сервере."));
-            }
+    /** Открыть сессию из входящих: сводка и все файлы клиента пересылкой по 100. */
+    private void onInboxOpen(Callback c, String data, int arg) {
+        if (!adminService.isAdmin(c.userId())) {
+            executeSafely(alert(c.query().getId(), "⛔ Нет доступа."));
             return;
         }
+        long sessionId = Router.parseLong(data, arg, data.length(), -1);
+        UploadRepository.Session session = uploadRepository.findSession(sessionId);
+        if (session == null) {
+            executeSafely(simple(c.chatId(), "Сессия #" + sessionId + " не найдена."));
+            return;
+        }
+        List<UploadRepository.Upload> files = uploadRepository.files(sessionId);
+        executeSafely(simple(c.chatId(), adminService.renderUploadSession(session, files)));
 
-        if (data.equals("MEDIA:VIDEO1_XML")) {
-            // ✅ ИП: вместо видео — сообщение с Rutube ссылкой
-            SendMessage sm = new SendMessage();
-            sm.setChatId(chatId);
-            sm.setParseMode(ParseMode.HTML);
-            sm.setText("""
-                    🎥 <b>Как отправить декларацию в XML для ИП</b>
+        List<Integer> messageIds = new ArrayList<>(files.size());
+        for (UploadRepository.Upload f : files) messageIds.add(f.messageId());
+        forwardAll(c.chatId(), session.chatId(), messageIds, Priority.INTERACTIVE);
+    }
 
-                    Видео-инструкция:
-                    """ + XML_RUTUBE_URL);
-            sm.setReplyMarkup(menuOnlyMarkup());
-            executeSafely(sm);
-            return;
+    private void onUploadStart(Callback c, String data, int arg) {
+        c.ctx().state = ConversationState.DOC_UPLOAD_WAIT_MEDIA;
+        contextRepository.save(c.ctx());
+
+        SendMessage sm = new SendMessage();
+        sm.setChatId(c.chatId());
+        sm.setText(DOC_UPLOAD_TEXT);
+        sm.setParseMode(ParseMode.HTML);
+        sm.setDisableWebPagePreview(true);
+        sm.setReplyMarkup(menuOnlyMarkup());
+        executeSafely(sm);
+    }
+
+    private void onReviewStar(Callback c, String data, int arg) {
+        int stars = Router.parseInt(data, arg, data.length(), 5);
+        if (stars < 1) stars = 1;
+        if (stars > 5) stars = 5;
+
+        UserContext ctx = c.ctx();
+        ctx.reviewStars = stars;
+        ctx.state = ConversationState.REVIEW_WAIT_COMMENT_TEXT;
+        contextRepository.save(ctx);
+
+        String starsText = "⭐".repeat(stars);
+        SendMessage sm = new SendMessage();
+        sm.setChatId(c.chatId());
+        sm.setText("Спасибо! Ваша оценка: <b>" + starsText + "</b>\n\nТеперь напишите, пожалуйста, текстовый комментарий одним сообщением ✍️");
+        sm.setParseMode(ParseMode.HTML);
+        sm.setDisableWebPagePreview(true);
+        executeSafely(sm);
+    }
+
+    private void onXmlVideoLink(Callback c, String data, int arg) {
+        // ✅ ИП: вместо видео — сообщение с Rutube ссылкой
+        SendMessage sm = new SendMessage();
+        sm.setChatId(c.chatId());
+        sm.setParseMode(ParseMode.HTML);
+        sm.setText("""
+                🎥 <b>Как отправить декларацию в XML для ИП</b>
+
+                Видео-инструкция:
+                """ + XML_RUTUBE_URL);
+        sm.setReplyMarkup(menuOnlyMarkup());
+        executeSafely(sm);
+    }
+
+    private void sendVideo(long chatId, MediaService.Media media) {
+        mediaService.send(chatId, media, null, menuOnlyMarkup()).whenComplete((sent, e) -> {
+            if (e == null) return;
+            log.warn("send {} failed: {}", media.cacheKey(), rootCause(e).toString());
+            executeSafely(simple(chatId, "⚠️ Не удалось отправить видео. Проверьте, что файл <code>media/" + media.fileName() + "</code> существует на сервере."));
+        });
+    }
+
+    /** Отправка видео через планировщик; отправитель для {@link MediaService}. */
+    public CompletableFuture<Message> uploadVideo(SendVideo sv) {
+        return outbound.deliver(chatIdOf(sv), Priority.INTERACTIVE, () -> execute(sv));
+    }
+
+    private record Command(long chatId, long userId, UserContext ctx, String text, int argStart) {
+        /** Первый аргумент команды как long; {@code def}, если его нет или это не число. */
+        long longArg(long def) {
+            return Router.parseLong(text, argStart, Router.tokenEnd(text, argStart), def);
         }
+    }
 
-        if (data.equals("MEDIA:VIDEO1_FL")) {
-            // ✅ Физлица: отправляем видео 1.mp4
-            SendVideo sv = mediaService.buildVideo(chatId, "video1", "1.mp4", null, menuOnlyMarkup());
-            try {
-                Message sent = execute(sv);
-                mediaService.updateCacheFromSentMessage("video1", sent);
-            } catch (Exception e) {
-                log.warn("send video1 failed: {}", e.toString());
-                executeSafely(simple(chatId, "⚠️ Не удалось отправить видео. Проверьте, что файл <code>media/1.mp4</code> существует на сервере."));
-            }
-            return;
+    private record Callback(CallbackQuery query, long chatId, int messageId, boolean canEdit, long userId, UserContext ctx) {
+        /** Сообщение, которое можно отредактировать вместо отправки нового. */
+        Integer editMessageId() {
+            return canEdit ? messageId : null;
         }
     }
 
@@ -520,32 +660,127 @@ public class EkaterinaBot extends TelegramLongPollingBot {
         return sm;
     }
 
-    private void executeSafely(BotApiMethod<?> method) {
-        if (method == null) return;
+    /**
+     * Ставит вызов в очередь отправки и сразу возвращается: порядок в чате держит планировщик.
+     * Ошибка логируется; future для тех, кому нужен результат.
+     */
+    private <T extends Serializable> CompletableFuture<T> executeSafely(BotApiMethod<T> method) {
+        return executeSafely(method, Priority.INTERACTIVE);
+    }
+
+    private <T extends Serializable> CompletableFuture<T> executeSafely(BotApiMethod<T> method, Priority priority) {
+        if (method == null) return CompletableFuture.completedFuture(null);
+        long chatId = chatIdOf(method);
+        CompletableFuture<T> f = isDelivery(method)
+                ? outbound.deliver(chatId, priority, () -> execute(method))
+                : outbound.submit(chatId, priority, () -> execute(method));
+        f.whenComplete((r, e) -> {
+            if (e != null) log.warn("execute failed: {}", rootCause(e).toString());
+        });
+        return f;
+    }
+
+    /** HTML-сообщение в заданной полосе; отправитель для {@link ru.ndfle.bot.service.BroadcastService}. */
+    public CompletableFuture<Message> sendHtml(long chatId, String html, Priority priority) {
+        return executeSafely(simple(chatId, html), priority);
+    }
+
+    private Void forwardOrCopyAll(long toChatId, long fromChatId, List<Integer> messageIds) throws TelegramApiException {
         try {
-            execute(method);
-        } catch (Exception e) {
-            log.warn("execute failed: {}", e.toString());
+            ForwardMessages fm = new ForwardMessages();
+            fm.setChatId(toChatId);
+            fm.setFromChatId(fromChatId);
+            fm.setMessageIds(messageIds);
+            execute(fm);
+        } catch (TelegramApiException e) {
+            // 429 goes back to the scheduler to be retried as is
+            if (e instanceof TelegramApiRequestException re && Integer.valueOf(429).equals(re.getErrorCode())) throw e;
+            // fallback: copy messages (if forward disabled)
+            CopyMessages cm = new CopyMessages();
+            cm.setChatId(toChatId);
+            cm.setFromChatId(fromChatId);
+            cm.setMessageIds(messageIds);
+            execute(cm);
+        }
+        return null;
+    }
+
+    /**
+     * Чат, в который уходит вызов: по нему считаются лимиты и держится порядок.
+     * Методы без chat_id (answerCallbackQuery, правка inline-сообщений) — NO_CHAT: вне лимитов чата,
+     * только общее ведро, поэтому ответ на нажатие не ждёт правки меню.
+     */
+    private static long chatIdOf(PartialBotApiMethod<?> method) {
+        String chatId = null;
+        if (method instanceof SendMessage m) chatId = m.getChatId();
+        else if (method instanceof SendMediaBotMethod<?> m) chatId = m.getChatId(); // photo, video, document, audio ...
+        else if (method instanceof SendMediaGroup m) chatId = m.getChatId();
+        else if (method instanceof SendLocation m) chatId = m.getChatId();
+        else if (method instanceof SendVenue m) chatId = m.getChatId();
+        else if (method instanceof SendContact m) chatId = m.getChatId();
+        else if (method instanceof SendDice m) chatId = m.getChatId();
+        else if (method instanceof SendChatAction m) chatId = m.getChatId();
+        else if (method instanceof EditMessageText m) chatId = m.getChatId();
+        else if (method instanceof EditMessageCaption m) chatId = m.getChatId();
+        else if (method instanceof EditMessageReplyMarkup m) chatId = m.getChatId();
+        else if (method instanceof EditMessageMedia m) chatId = m.getChatId();
+        else if (method instanceof EditMessageLiveLocation m) chatId = m.getChatId();
+        else if (method instanceof DeleteMessage m) chatId = m.getChatId();
+        else if (method instanceof DeleteMessages m) chatId = m.getChatId();
+        else if (method instanceof CopyMessage m) chatId = m.getChatId();
+        else if (method instanceof CopyMessages m) chatId = m.getChatId();
+        else if (method instanceof ForwardMessage m) chatId = m.getChatId();
+        else if (method instanceof ForwardMessages m) chatId = m.getChatId();
+        else if (method instanceof PinChatMessage m) chatId = m.getChatId();
+        else if (method instanceof UnpinChatMessage m) chatId = m.getChatId();
+        if (chatId == null) return OutboundScheduler.NO_CHAT;
+        try {
+            return Long.parseLong(chatId);
+        } catch (NumberFormatException e) {
+            return OutboundScheduler.NO_CHAT;
         }
     }
 
+    /**
+     * Новое сообщение в чат: его ошибка говорит о самом получателе (заблокировал бота, удалён).
+     * Правки, удаления и ответы на нажатия — нет; у пересылок сбоить может и исходный чат.
+     */
+    private static boolean isDelivery(PartialBotApiMethod<?> method) {
+        return method instanceof SendMessage
+                || method instanceof SendMediaBotMethod<?>
+                || method instanceof SendMediaGroup
+                || method instanceof SendLocation
+                || method instanceof SendVenue
+                || method instanceof SendContact
+                || method instanceof SendDice;
+    }
+
+    private static Throwable rootCause(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
     private static InlineKeyboardMarkup menuOnlyMarkup() {
+        return singleButton("🏠 Вернуться в меню", "M");
+    }
+
+    private static InlineKeyboardMarkup singleButton(String text, String data) {
         InlineKeyboardButton b = new InlineKeyboardButton();
-        b.setText("🏠 Вернуться в меню");
-        b.setCallbackData("M");
+        b.setText(text);
+        b.setCallbackData(data);
         InlineKeyboardMarkup m = new InlineKeyboardMarkup();
         m.setKeyboard(List.of(List.of(b)));
         return m;
     }
 
-    private static String buildUploadHeader(User user) {
+    private static String buildUploadHeader(User user, int files) {
         String displayName = escapeHtml((user.getFirstName() == null ? "" : user.getFirstName()) + " " + (user.getLastName() == null ? "" : user.getLastName())).trim();
         if (displayName.isEmpty()) displayName = "Пользователь";
         String mention = "<a href=\"tg://user?id=" + user.getId() + "\">" + displayName + "</a>";
         String tag = (user.getUserName() == null || user.getUserName().isBlank()) ? "—" : "@" + escapeHtml(user.getUserName());
         return "📎 <b>Документы от клиента</b>\n"
                 + "👤 " + mention + "\n"
-                + "🔖 " + tag + "\n";
+                + "🔖 " + tag + "\n"
+                + "🗂 Сообщений с файлами: " + files + "\n";
     }
 
     private static String buildReviewAdminMessage(long reviewId, User user, int stars, String comment) {
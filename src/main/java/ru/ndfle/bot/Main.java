@@ -3,15 +3,27 @@ package ru.ndfle.bot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 import ru.ndfle.bot.config.Env;
 import ru.ndfle.bot.db.*;
 import ru.ndfle.bot.menu.MenuTree;
+import ru.ndfle.bot.model.BackStack;
+import ru.ndfle.bot.outbound.OutboundScheduler;
 import ru.ndfle.bot.service.AdminService;
+import ru.ndfle.bot.service.AssignmentService;
+import ru.ndfle.bot.service.BroadcastService;
 import ru.ndfle.bot.service.MediaService;
 import ru.ndfle.bot.service.NavigationService;
+import ru.ndfle.bot.service.NotificationService;
+import ru.ndfle.bot.service.StatsService;
 import ru.ndfle.bot.service.SurveyService;
+import ru.ndfle.bot.service.UploadRelay;
+import ru.ndfle.bot.update.UpdateDispatcher;
+import ru.ndfle.bot.update.WebhookServer;
 
+import java.time.Duration;
+import java.util.Locale;
 import java.util.Set;
 
 public class Main {
@@ -24,30 +36,144 @@ public class Main {
         Set<Long> adminIds = Env.parseAdminIds(Env.optional("ADMIN_IDS", ""));
         String mediaDir = Env.optional("MEDIA_DIR", "media");
 
-        Database db = new Database(dbPath);
+        Database.Settings defaults = Database.Settings.defaults();
+        Database.Settings dbSettings = new Database.Settings(
+                Env.optionalInt("SQLITE_POOL_SIZE", defaults.poolSize()),
+                Env.optionalInt("SQLITE_BUSY_TIMEOUT_MS", defaults.busyTimeoutMs()),
+                Env.optionalLong("SQLITE_MMAP_SIZE", defaults.mmapSizeBytes()),
+                Env.optionalInt("SQLITE_CACHE_SIZE_KB", defaults.cacheSizeKb()),
+                Env.optionalLong("SQLITE_POOL_TIMEOUT_MS", defaults.acquireTimeoutMs()),
+                Env.optionalInt("SQLITE_STATEMENT_CACHE", defaults.statementCacheSize()),
+                Env.optionalInt("SQLITE_WRITE_BATCH", defaults.writeBatchSize())
+        );
+
+        Database db = new Database(dbPath, dbSettings);
         db.init();
 
-        UserRepository userRepo = new UserRepository(db);
-        ContextRepository ctxRepo = new ContextRepository(db);
+        UserRepository userRepo = new UserRepository(db,
+                Env.optionalLong("USER_LAST_SEEN_GRANULARITY_SEC", 300) * 1000,
+                Env.optionalLong("USER_FLUSH_INTERVAL_MS", 2000));
+        MenuTree menuTree = new MenuTree();
+        BackStack.setDefaultLimit(Env.optionalInt("BACK_STACK_LIMIT", 16));
+
+        ContextCodec contextCodec = new ContextCodec(db, menuTree);
+        ContextRepository ctxRepo = new ContextRepository(db, new ContextCache(Env.optionalInt("CONTEXT_CACHE_SIZE", 10_000)), contextCodec);
         AdminRepository adminRepo = new AdminRepository(db);
         BkRequestRepository bkRepo = new BkRequestRepository(db);
         MediaCacheRepository mediaCacheRepo = new MediaCacheRepository(db);
         ReviewRepository reviewRepo = new ReviewRepository(db);
+        BroadcastRepository broadcastRepo = new BroadcastRepository(db);
+        AssignmentRepository assignmentRepo = new AssignmentRepository(db);
+        UploadRepository uploadRepo = new UploadRepository(db, Duration.ofMinutes(Env.optionalInt("UPLOAD_SESSION_IDLE_MIN", 30)));
 
         // Ensure initial admins from env
         adminRepo.ensureAdmins(adminIds);
 
-        MenuTree menuTree = new MenuTree();
+        // Per-user ordering, parallel across users (virtual-thread mailboxes on JDK 21+, lanes otherwise)
+        UpdateDispatcher updateDispatcher = new UpdateDispatcher(
+                UpdateDispatcher.Mode.valueOf(Env.optional("UPDATE_DISPATCH_MODE", "auto").toUpperCase(Locale.ROOT)),
+                Env.optionalInt("UPDATE_WORKERS", Runtime.getRuntime().availableProcessors() * 2));
+
+        // Outgoing calls paced to Telegram limits (global, per chat, retry_after on 429) in priority lanes
+        OutboundScheduler.Settings outboundDefaults = OutboundScheduler.Settings.defaults();
+        OutboundScheduler outbound = new OutboundScheduler(new OutboundScheduler.Settings(
+                Env.optionalDouble("OUTBOUND_GLOBAL_PER_SEC", outboundDefaults.globalPerSec()),
+                Env.optionalDouble("OUTBOUND_CHAT_PER_SEC", outboundDefaults.chatPerSec()),
+                Env.optionalInt("OUTBOUND_CHAT_BURST", outboundDefaults.chatBurst()),
+                Env.optionalDouble("OUTBOUND_GROUP_PER_MIN", outboundDefaults.groupPerMin()),
+                Env.optionalInt("OUTBOUND_THREADS", outboundDefaults.senderThreads()),
+                Env.optionalInt("OUTBOUND_MAX_RETRIES", outboundDefaults.maxRetries()),
+                Env.optionalInt("OUTBOUND_BULK_SHARE_PCT", (int) (outboundDefaults.bulkShare() * 100)) / 100d,
+                Env.optionalLong("OUTBOUND_ADMIN_AGING_MS", outboundDefaults.adminAgingMs()),
+                Env.optionalLong("OUTBOUND_BULK_AGING_MS", outboundDefaults.bulkAgingMs())
+        ));
+        // Delivery outcomes (new messages only, see OutboundScheduler.deliver) land on users:
+        // dead chats drop out of broadcasts and admin notifications
+        outbound.setOutcomeListener((chatId, error) -> {
+            if (error == null) userRepo.recordSuccess(chatId);
+            else userRepo.recordFailure(chatId, error.getMessage(), OutboundScheduler.isUnreachable(error));
+        });
+
         NavigationService nav = new NavigationService(menuTree, ctxRepo);
-        AdminService adminService = new AdminService(adminRepo, ctxRepo, bkRepo, userRepo);
-        SurveyService surveyService = new SurveyService(ctxRepo, bkRepo, adminRepo, nav);
+        // Admin notifications: one message per event, or a per-admin digest every N seconds / N events
+        NotificationService notifications = new NotificationService(
+                NotificationService.Mode.valueOf(Env.optional("NOTIFY_MODE", "immediate").toUpperCase(Locale.ROOT)),
+                Env.optionalInt("NOTIFY_DIGEST_SECONDS", 60) * 1000L,
+                Env.optionalInt("NOTIFY_DIGEST_MAX_EVENTS", 10));
+        StatsService statsService = new StatsService(db, userRepo, ctxRepo, updateDispatcher, outbound, notifications);
+        BroadcastService broadcastService = new BroadcastService(broadcastRepo, Env.optionalInt("BROADCAST_CHUNK", 100));
+        AdminService adminService = new AdminService(adminRepo, ctxRepo, bkRepo, userRepo, broadcastService, statsService, uploadRepo, assignmentRepo);
+        // Each client's BK requests, reviews and uploads go to one admin (sticky), not to everyone
+        AssignmentService assignmentService = new AssignmentService(assignmentRepo, adminService,
+                AssignmentService.Strategy.valueOf(Env.optional("ASSIGN_STRATEGY", "least_open").toUpperCase(Locale.ROOT)));
+        SurveyService surveyService = new SurveyService(ctxRepo, bkRepo, nav);
         MediaService mediaService = new MediaService(mediaCacheRepo, mediaDir);
+        // Client uploads are recorded per burst (album / files sent back to back); admins are notified once per session
+        UploadRelay uploadRelay = new UploadRelay(
+                Env.optionalLong("UPLOAD_IDLE_MS", 1500),
+                Env.optionalLong("UPLOAD_MAX_HOLD_MS", 10_000));
+
+        // Stable ordinals for everything the binary context format refers to, then convert old JSON rows
+        contextCodec.registerAll(ContextCodec.NODE, menuTree.nodeIds());
+        contextCodec.registerAll(ContextCodec.BK_KEY, surveyService.answerKeys());
+        contextCodec.registerAll(ContextCodec.BK_VALUE, surveyService.optionLabels());
+        ctxRepo.migrateLegacyJson();
+
+        EkaterinaBot bot = new EkaterinaBot(token, username, userRepo, ctxRepo, nav, surveyService, adminService, reviewRepo, mediaService, updateDispatcher, outbound, uploadRelay, uploadRepo, assignmentService, notifications);
+        // Jobs left RUNNING by the previous process continue from their checkpoint
+        broadcastService.start(bot::sendHtml);
+        uploadRelay.start(bot::relayUploads);
+        notifications.start(bot::sendNotification);
+        mediaService.start(bot::uploadVideo);
+        // Videos without a file_id are uploaded once to a service chat, so no user tap uploads from disk
+        long mediaWarmupChat = Env.optionalLong("MEDIA_WARMUP_CHAT_ID", 0);
+        if (mediaWarmupChat != 0) mediaService.prewarm(mediaWarmupChat);
+        else log.info("MEDIA_WARMUP_CHAT_ID not set, media is uploaded on first request");
+        // Replaced files get a new content key; with a warmup chat the new version is uploaded in the background
+        mediaService.watch();
+
+        boolean webhookMode = "webhook".equalsIgnoreCase(Env.optional("BOT_MODE", "polling"));
+        WebhookServer webhookServer = null;
+        if (webhookMode) {
+            String webhookUrl = Env.require("WEBHOOK_URL");
+            WebhookServer.Settings webhookSettings = new WebhookServer.Settings(
+                    Env.optionalInt("WEBHOOK_PORT", 8080),
+                    Env.optional("WEBHOOK_PATH", "/telegram"),
+                    Env.optional("WEBHOOK_SECRET", ""),
+                    Env.optionalInt("WEBHOOK_THREADS", 4),
+                    Env.optionalInt("WEBHOOK_MAX_BODY", 1024 * 1024)
+            );
+            webhookServer = new WebhookServer(webhookSettings, bot::onUpdateReceived);
+            webhookServer.start();
+            statsService.setWebhook(webhookServer);
+
+            SetWebhook.SetWebhookBuilder setWebhook = SetWebhook.builder()
+                    .url(webhookUrl)
+                    .maxConnections(Math.min(100, webhookSettings.threads() * 10));
+            if (!webhookSettings.secretToken().isBlank()) setWebhook.secretToken(webhookSettings.secretToken());
+            bot.execute(setWebhook.build());
+        }
 
-        EkaterinaBot bot = new EkaterinaBot(token, username, userRepo, ctxRepo, nav, surveyService, adminService, reviewRepo, mediaService);
+        WebhookServer server = webhookServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (server != null) server.close();
+            // Finish accepted updates, then drain write-behind buffers before the writer and pool go away
+            updateDispatcher.close();
+            uploadRelay.close();
+            mediaService.close();
+            notifications.close();
+            broadcastService.close();
+            outbound.close();
+            userRepo.close();
+            db.close();
+        }, "shutdown"));
 
-        TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
-        api.registerBot(bot);
+        if (!webhookMode) {
+            TelegramBotsApi api = new TelegramBotsApi(DefaultBotSession.class);
+            api.registerBot(bot);
+        }
 
-        log.info("Bot started as @{} with DB {} and media dir {}", username, dbPath, mediaDir);
+        log.info("Bot started as @{} ({}) with DB {} (pool {}) and media dir {}",
+                username, webhookMode ? "webhook" : "long polling", dbPath, dbSettings.poolSize(), mediaDir);
     }
 }
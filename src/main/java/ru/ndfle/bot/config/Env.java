@@ -22,6 +22,36 @@ public final class Env {
         return v.trim();
     }
 
+    public static int optionalInt(String key, int def) {
+        String v = optional(key, null);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Env var " + key + " must be an integer: " + v);
+        }
+    }
+
+    public static long optionalLong(String key, long def) {
+        String v = optional(key, null);
+        if (v == null) return def;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Env var " + key + " must be an integer: " + v);
+        }
+    }
+
+    public static double optionalDouble(String key, double def) {
+        String v = optional(key, null);
+        if (v == null) return def;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Env var " + key + " must be a number: " + v);
+        }
+    }
+
     public static Set<Long> parseAdminIds(String raw) {
         if (raw == null || raw.trim().isEmpty()) return new LinkedHashSet<>();
         return Arrays.stream(raw.split(","))
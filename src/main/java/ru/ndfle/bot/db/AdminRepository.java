@@ -9,6 +9,14 @@ import java.util.Set;
 
 public class AdminRepository {
     private static final Logger log = LoggerFactory.getLogger(AdminRepository.class);
+
+    private static final Query<Long> LIST_IDS = Query.of(
+            "SELECT user_id FROM admins ORDER BY user_id", rs -> rs.getLong(1));
+    private static final Update INSERT = Update.of(
+            "INSERT INTO admins(user_id, added_at) VALUES(?,?) ON CONFLICT(user_id) DO NOTHING");
+    private static final Update DELETE = Update.of(
+            "DELETE FROM admins WHERE user_id=?");
+
     private final Database db;
 
     public AdminRepository(Database db) {
@@ -20,25 +28,10 @@ public class AdminRepository {
         for (Long id : adminIds) addAdmin(id);
     }
 
-    public boolean isAdmin(long userId) {
-        try (var c = db.getConnection();
-             var ps = c.prepareStatement("SELECT 1 FROM admins WHERE user_id=?")) {
-            ps.setLong(1, userId);
-            try (var rs = ps.executeQuery()) {
-                return rs.next();
-            }
-        } catch (Exception e) {
-            log.warn("isAdmin failed: {}", e.toString());
-            return false;
-        }
-    }
-
     public Set<Long> listAdminIds() {
         Set<Long> ids = new LinkedHashSet<>();
-        try (var c = db.getConnection();
-             var st = c.createStatement();
-             var rs = st.executeQuery("SELECT user_id FROM admins ORDER BY user_id")) {
-            while (rs.next()) ids.add(rs.getLong(1));
+        try {
+            ids.addAll(db.queryList(LIST_IDS, Query.Binder.NONE));
         } catch (Exception e) {
             log.warn("listAdminIds failed: {}", e.toString());
         }
@@ -46,27 +39,20 @@ public class AdminRepository {
     }
 
     public boolean addAdmin(long userId) {
-        try (var c = db.getConnection();
-             var ps = c.prepareStatement("INSERT INTO admins(user_id, added_at) VALUES(?,?) ON CONFLICT(user_id) DO NOTHING")) {
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(INSERT, ps -> {
             ps.setLong(1, userId);
-            ps.setString(2, OffsetDateTime.now().toString());
-            ps.executeUpdate();
-            return true;
-        } catch (Exception e) {
-            log.warn("addAdmin failed: {}", e.toString());
-            return false;
-        }
+            ps.setString(2, now);
+        }).handle((n, e) -> {
+            if (e != null) log.warn("addAdmin failed: {}", e.toString());
+            return e == null;
+        }).join();
     }
 
     public boolean removeAdmin(long userId) {
-        try (var c = db.getConnection();
-             var ps = c.prepareStatement("DELETE FROM admins WHERE user_id=?")) {
-            ps.setLong(1, userId);
-            ps.executeUpdate();
-            return true;
-        } catch (Exception e) {
-            log.warn("removeAdmin failed: {}", e.toString());
-            return false;
-        }
+        return db.writeUpdate(DELETE, ps -> ps.setLong(1, userId)).handle((n, e) -> {
+            if (e != null) log.warn("removeAdmin failed: {}", e.toString());
+            return e == null;
+        }).join();
     }
 }
@@ -0,0 +1,134 @@
+package ru.ndfle.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Распределение работы по админам: клиент закрепляется за одним админом (assignments),
+ * каждая заявка/отзыв/сессия документов — строка work_items в очереди этого админа.
+ * Выбор и запись делаются одной транзакцией писателя, поэтому два события одного
+ * нового клиента не уйдут разным админам.
+ */
+public class AssignmentRepository {
+    private static final Logger log = LoggerFactory.getLogger(AssignmentRepository.class);
+
+    public enum Kind { BK, REVIEW, UPLOAD }
+
+    /**
+     * Выбор админа для нового клиента.
+     *
+     * @param admins     доступные админы, по возрастанию id
+     * @param openCounts открытые элементы по админам (нет ключа — 0); пусто, если стратегии не нужно
+     */
+    @FunctionalInterface
+    public interface Chooser {
+        long choose(long[] admins, Map<Long, Integer> openCounts);
+    }
+
+    public record WorkItem(long id, Kind kind, long refId, long userId, long adminId, String createdAt) {}
+
+    private static final Query<Long> ASSIGNED_ADMIN = Query.of(
+            "SELECT admin_id FROM assignments WHERE user_id=?", rs -> rs.getLong(1));
+    private static final Query<long[]> OPEN_COUNTS = Query.of(
+            "SELECT admin_id, COUNT(*) FROM work_items WHERE status='OPEN' GROUP BY admin_id",
+            rs -> new long[]{rs.getLong(1), rs.getLong(2)});
+    private static final Update ASSIGN = Update.of("""
+            INSERT INTO assignments(user_id, admin_id, assigned_at) VALUES(?,?,?)
+            ON CONFLICT(user_id) DO UPDATE SET admin_id=excluded.admin_id, assigned_at=excluded.assigned_at
+            """);
+    private static final Update INSERT_ITEM = Update.of("""
+            INSERT INTO work_items(kind, ref_id, user_id, admin_id, status, created_at)
+            VALUES(?,?,?,?,'OPEN',?)
+            """);
+    private static final Query<WorkItem> OPEN_BEFORE = Query.of("""
+            SELECT id, kind, ref_id, user_id, admin_id, created_at FROM work_items
+            WHERE admin_id=? AND status='OPEN' AND id < ?
+            ORDER BY id DESC LIMIT ?
+            """, rs -> new WorkItem(
+            rs.getLong(1),
+            Kind.valueOf(rs.getString(2)),
+            rs.getLong(3),
+            rs.getLong(4),
+            rs.getLong(5),
+            rs.getString(6)));
+    private static final Update CLOSE_ITEM = Update.of(
+            "UPDATE work_items SET status='DONE', closed_at=? WHERE id=? AND admin_id=? AND status='OPEN'");
+
+    private final Database db;
+
+    public AssignmentRepository(Database db) {
+        this.db = db;
+    }
+
+    /**
+     * Ставит событие в очередь закреплённого за клиентом админа (закрепляет, если нужно).
+     * Future — id админа, или -1, если админов нет.
+     *
+     * @param admins доступные админы, по возрастанию id; закрепление за выбывшим админом пересматривается
+     */
+    public CompletableFuture<Long> route(Kind kind, long refId, long userId, long[] admins, Chooser chooser) {
+        if (admins.length == 0) return CompletableFuture.completedFuture(-1L);
+        String now = OffsetDateTime.now().toString();
+        return db.write(c -> {
+            Long assigned = c.queryOne(ASSIGNED_ADMIN, ps -> ps.setLong(1, userId));
+            long adminId;
+            if (assigned != null && Arrays.binarySearch(admins, assigned) >= 0) {
+                adminId = assigned;
+            } else {
+                Map<Long, Integer> open = new HashMap<>();
+                for (long[] row : c.queryList(OPEN_COUNTS, Query.Binder.NONE)) open.put(row[0], (int) row[1]);
+                adminId = chooser.choose(admins, open);
+                long chosen = adminId;
+                c.update(ASSIGN, ps -> {
+                    ps.setLong(1, userId);
+                    ps.setLong(2, chosen);
+                    ps.setString(3, now);
+                });
+            }
+            long target = adminId;
+            c.update(INSERT_ITEM, ps -> {
+                ps.setString(1, kind.name());
+                ps.setLong(2, refId);
+                ps.setLong(3, userId);
+                ps.setLong(4, target);
+                ps.setString(5, now);
+            });
+            return adminId;
+        });
+    }
+
+    /** Открытые элементы админа, новые сверху, с id меньше {@code beforeId}. */
+    public List<WorkItem> openItems(long adminId, long beforeId, int limit) {
+        try {
+            return db.queryList(OPEN_BEFORE, ps -> {
+                ps.setLong(1, adminId);
+                ps.setLong(2, beforeId);
+                ps.setInt(3, limit);
+            });
+        } catch (Exception e) {
+            log.warn("open work items failed: {}", e.toString());
+            return new ArrayList<>();
+        }
+    }
+
+    /** Закрывает элемент своей очереди; true, если он был открыт. */
+    public boolean close(long itemId, long adminId) {
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(CLOSE_ITEM, ps -> {
+            ps.setString(1, now);
+            ps.setLong(2, itemId);
+            ps.setLong(3, adminId);
+        }).handle((n, e) -> {
+            if (e != null) log.warn("close work item failed: {}", e.toString());
+            return e == null && n > 0;
+        }).join();
+    }
+}
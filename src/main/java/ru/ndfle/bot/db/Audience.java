@@ -0,0 +1,61 @@
+package ru.ndfle.bot.db;
+
+import ru.ndfle.bot.model.ConversationState;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+
+/**
+ * Аудитория рассылки: сегмент и его параметр (дни для ACTIVE, имя состояния для IN_STATE).
+ * Хранится в broadcast_jobs, поэтому возобновлённое задание выбирает тех же получателей.
+ */
+public record Audience(Segment segment, String arg) {
+
+    public enum Segment {
+        /** Все, кто писал боту */
+        ALL,
+        /** Писали за последние N дней (users.last_seen) */
+        ACTIVE,
+        /** Прошли опрос БК (есть строка в bk_requests) */
+        BK_DONE,
+        /** Оставили отзыв */
+        REVIEWED,
+        /** Сейчас в заданном ConversationState */
+        IN_STATE
+    }
+
+    public static final Audience ALL = new Audience(Segment.ALL, null);
+
+    public Audience {
+        if (segment == Segment.ACTIVE) arg = String.valueOf(Math.max(1, Integer.parseInt(arg)));
+        else if (segment == Segment.IN_STATE) arg = ConversationState.valueOf(arg).name();
+        else arg = null;
+    }
+
+    /** Из callback-данных вида {@code SEGMENT} или {@code SEGMENT:arg}; бросает IllegalArgumentException. */
+    public static Audience parse(String s) {
+        int colon = s.indexOf(':');
+        Segment segment = Segment.valueOf(colon < 0 ? s : s.substring(0, colon));
+        return new Audience(segment, colon < 0 ? null : s.substring(colon + 1));
+    }
+
+    public String key() {
+        return arg == null ? segment.name() : segment.name() + ":" + arg;
+    }
+
+    /** Граница last_seen для ACTIVE: отсчитывается от момента создания задания. */
+    String activeSince(String createdAt) {
+        OffsetDateTime from = createdAt == null ? OffsetDateTime.now() : OffsetDateTime.parse(createdAt);
+        return from.minusDays(Integer.parseInt(arg)).atZoneSameInstant(ZoneId.systemDefault()).toOffsetDateTime().toString();
+    }
+
+    public String label() {
+        return switch (segment) {
+            case ALL -> "все пользователи";
+            case ACTIVE -> "активные за " + arg + " дн.";
+            case BK_DONE -> "прошли опрос БК";
+            case REVIEWED -> "оставили отзыв";
+            case IN_STATE -> "в состоянии " + arg;
+        };
+    }
+}
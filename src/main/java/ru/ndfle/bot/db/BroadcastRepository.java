@@ -0,0 +1,264 @@
+package ru.ndfle.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Задания рассылки (broadcast_jobs) и журнал доставок (broadcast_deliveries).
+ * Получатели выбираются порциями по user_id (keyset), уже получившие сообщение
+ * пропускаются — поэтому прерванное задание продолжается с места остановки.
+ * Недоступные пользователи ({@code users.blocked}) в рассылку не попадают.
+ * <p>
+ * Задание создаётся черновиком (DRAFT): админ выбирает {@link Audience}, видит число получателей
+ * и только потом запускает. Сегменты — отдельные заранее собранные запросы по индексам.
+ */
+public class BroadcastRepository {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastRepository.class);
+
+    public enum Status { DRAFT, RUNNING, PAUSED, CANCELLED, DONE }
+
+    public record Job(long id,
+                      long createdBy,
+                      String htmlText,
+                      Audience audience,
+                      Status status,
+                      long cursorUserId,
+                      int total,
+                      int sent,
+                      int failed,
+                      String createdAt,
+                      String finishedAt) {
+        public int processed() {
+            return sent + failed;
+        }
+    }
+
+    private static final String JOB_COLUMNS =
+            "id, created_by, html_text, segment, segment_arg, status, cursor_user_id, total, sent, failed, created_at, finished_at";
+    private static final Query.RowMapper<Job> JOB = rs -> new Job(
+            rs.getLong(1),
+            rs.getLong(2),
+            rs.getString(3),
+            new Audience(Audience.Segment.valueOf(rs.getString(4)), rs.getString(5)),
+            Status.valueOf(rs.getString(6)),
+            rs.getLong(7),
+            rs.getInt(8),
+            rs.getInt(9),
+            rs.getInt(10),
+            rs.getString(11),
+            rs.getString(12));
+
+    private static final Query<Job> FIND = Query.of(
+            "SELECT " + JOB_COLUMNS + " FROM broadcast_jobs WHERE id=?", JOB);
+    private static final Query<Job> RECENT = Query.of(
+            "SELECT " + JOB_COLUMNS + " FROM broadcast_jobs ORDER BY id DESC LIMIT ?", JOB);
+    private static final Query<Long> IDS_WITH_STATUS = Query.of(
+            "SELECT id FROM broadcast_jobs WHERE status=? ORDER BY id", rs -> rs.getLong(1));
+
+    /** Условие сегмента поверх users u; не больше одного параметра */
+    private static String segmentFilter(Audience.Segment segment) {
+        return switch (segment) {
+            case ALL -> "";
+            // last_seen carries the writer's offset: compare instants, not strings
+            case ACTIVE -> " AND julianday(u.last_seen) >= julianday(?)";
+            case BK_DONE -> " AND EXISTS (SELECT 1 FROM bk_requests b WHERE b.user_id=u.user_id)";
+            case REVIEWED -> " AND EXISTS (SELECT 1 FROM reviews r WHERE r.user_id=u.user_id)";
+            case IN_STATE -> " AND EXISTS (SELECT 1 FROM user_context c WHERE c.user_id=u.user_id AND c.state=?)";
+        };
+    }
+
+    private static final Map<Audience.Segment, Query<Integer>> COUNT = new EnumMap<>(Audience.Segment.class);
+    private static final Map<Audience.Segment, Query<Long>> NEXT_RECIPIENTS = new EnumMap<>(Audience.Segment.class);
+
+    static {
+        for (Audience.Segment segment : Audience.Segment.values()) {
+            COUNT.put(segment, Query.of(
+                    "SELECT COUNT(*) FROM users u WHERE u.blocked=0" + segmentFilter(segment), rs -> rs.getInt(1)));
+            NEXT_RECIPIENTS.put(segment, Query.of("SELECT u.user_id FROM users u"
+                    + " WHERE u.user_id > ? AND u.blocked=0" + segmentFilter(segment)
+                    + " AND NOT EXISTS (SELECT 1 FROM broadcast_deliveries d WHERE d.job_id=? AND d.user_id=u.user_id)"
+                    + " ORDER BY u.user_id LIMIT ?", rs -> rs.getLong(1)));
+        }
+    }
+
+    private static final Update INSERT_JOB = Update.returningKey("""
+            INSERT INTO broadcast_jobs(created_by, html_text, segment, segment_arg, status, cursor_user_id, total, sent, failed, created_at, updated_at)
+            VALUES(?,?,'ALL',NULL,?,0,?,0,0,?,?)
+            """);
+    private static final Update SET_AUDIENCE = Update.of(
+            "UPDATE broadcast_jobs SET segment=?, segment_arg=?, total=?, updated_at=? WHERE id=? AND status='DRAFT'");
+    private static final String SET_STATUS =
+            "UPDATE broadcast_jobs SET status=?, updated_at=? WHERE id=? AND status IN (%s)";
+    private static final Update INSERT_DELIVERY = Update.of("""
+            INSERT INTO broadcast_deliveries(job_id, user_id, status, error, sent_at)
+            VALUES(?,?,?,?,?)
+            ON CONFLICT(job_id, user_id) DO UPDATE SET status=excluded.status, error=excluded.error, sent_at=excluded.sent_at
+            """);
+    private static final Update CHECKPOINT = Update.of("""
+            UPDATE broadcast_jobs SET
+              cursor_user_id=?,
+              sent=(SELECT COUNT(*) FROM broadcast_deliveries WHERE job_id=? AND status='SENT'),
+              failed=(SELECT COUNT(*) FROM broadcast_deliveries WHERE job_id=? AND status='FAILED'),
+              updated_at=?
+            WHERE id=?
+            """);
+    private static final Update FINISH = Update.of(
+            "UPDATE broadcast_jobs SET status='DONE', finished_at=?, updated_at=? WHERE id=? AND status='RUNNING'");
+
+    private final Database db;
+
+    public BroadcastRepository(Database db) {
+        this.db = db;
+    }
+
+    /** Новый черновик для всех пользователей; future — id после коммита. */
+    public CompletableFuture<Long> create(long createdBy, String htmlText) {
+        String now = OffsetDateTime.now().toString();
+        int total = count(Audience.ALL, now);
+        return db.writeInsert(INSERT_JOB, ps -> {
+            ps.setLong(1, createdBy);
+            ps.setString(2, htmlText);
+            ps.setString(3, Status.DRAFT.name());
+            ps.setInt(4, total);
+            ps.setString(5, now);
+            ps.setString(6, now);
+        });
+    }
+
+    public Job find(long id) {
+        try {
+            return db.queryOne(FIND, ps -> ps.setLong(1, id));
+        } catch (Exception e) {
+            log.warn("find broadcast job failed: {}", e.toString());
+            return null;
+        }
+    }
+
+    public List<Job> recent(int limit) {
+        try {
+            return db.queryList(RECENT, ps -> ps.setInt(1, limit));
+        } catch (Exception e) {
+            log.warn("recent broadcast jobs failed: {}", e.toString());
+            return new ArrayList<>();
+        }
+    }
+
+    public List<Long> idsWithStatus(Status status) {
+        try {
+            return db.queryList(IDS_WITH_STATUS, ps -> ps.setString(1, status.name()));
+        } catch (Exception e) {
+            log.warn("broadcast jobs by status failed: {}", e.toString());
+            return new ArrayList<>();
+        }
+    }
+
+    /** Следующая порция получателей задания после {@code afterUserId}, без тех, кому уже доставлено. */
+    public List<Long> nextRecipients(Job job, long afterUserId, int limit) throws Exception {
+        Audience audience = job.audience();
+        String param = segmentParam(audience, job.createdAt());
+        return db.queryList(NEXT_RECIPIENTS.get(audience.segment()), ps -> {
+            int i = 1;
+            ps.setLong(i++, afterUserId);
+            if (param != null) ps.setString(i++, param);
+            ps.setLong(i++, job.id());
+            ps.setInt(i, limit);
+        });
+    }
+
+    /** Сколько доступных пользователей попадает в аудиторию (ACTIVE — считая от {@code createdAt}). */
+    public int count(Audience audience, String createdAt) {
+        String param = segmentParam(audience, createdAt);
+        try {
+            Integer n = db.queryOne(COUNT.get(audience.segment()), ps -> {
+                if (param != null) ps.setString(1, param);
+            });
+            return n == null ? 0 : n;
+        } catch (Exception e) {
+            log.warn("count audience {} failed: {}", audience.key(), e.toString());
+            return 0;
+        }
+    }
+
+    /** Меняет аудиторию черновика и пересчитывает число получателей; future — true, если это черновик. */
+    public CompletableFuture<Boolean> setAudience(Job job, Audience audience) {
+        int total = count(audience, job.createdAt());
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(SET_AUDIENCE, ps -> {
+            ps.setString(1, audience.segment().name());
+            ps.setString(2, audience.arg());
+            ps.setInt(3, total);
+            ps.setString(4, now);
+            ps.setLong(5, job.id());
+        }).handle((n, e) -> {
+            if (e != null) log.warn("set audience for job {} failed: {}", job.id(), e.toString());
+            return e == null && n > 0;
+        });
+    }
+
+    private static String segmentParam(Audience audience, String createdAt) {
+        return switch (audience.segment()) {
+            case ACTIVE -> audience.activeSince(createdAt);
+            case IN_STATE -> audience.arg();
+            default -> null;
+        };
+    }
+
+    /**
+     * Переводит задание в {@code to}, только если сейчас оно в одном из {@code from}.
+     * Future — true, если статус поменялся.
+     */
+    public CompletableFuture<Boolean> transition(long id, Status to, Status... from) {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < from.length; i++) in.append(i == 0 ? "?" : ",?");
+        Update u = Update.of(SET_STATUS.formatted(in));
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(u, ps -> {
+            ps.setString(1, to.name());
+            ps.setString(2, now);
+            ps.setLong(3, id);
+            for (int i = 0; i < from.length; i++) ps.setString(4 + i, from[i].name());
+        }).handle((n, e) -> {
+            if (e != null) log.warn("broadcast job {} -> {} failed: {}", id, to, e.toString());
+            return e == null && n > 0;
+        });
+    }
+
+    public CompletableFuture<Integer> recordDelivery(long jobId, long userId, String error) {
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(INSERT_DELIVERY, ps -> {
+            ps.setLong(1, jobId);
+            ps.setLong(2, userId);
+            ps.setString(3, error == null ? "SENT" : "FAILED");
+            ps.setString(4, error);
+            ps.setString(5, now);
+        });
+    }
+
+    /** Запоминает, докуда дошла рассылка, и пересчитывает счётчики по журналу доставок. */
+    public CompletableFuture<Integer> checkpoint(long jobId, long cursorUserId) {
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(CHECKPOINT, ps -> {
+            ps.setLong(1, cursorUserId);
+            ps.setLong(2, jobId);
+            ps.setLong(3, jobId);
+            ps.setString(4, now);
+            ps.setLong(5, jobId);
+        });
+    }
+
+    public CompletableFuture<Integer> finish(long jobId) {
+        String now = OffsetDateTime.now().toString();
+        return db.writeUpdate(FINISH, ps -> {
+            ps.setString(1, now);
+            ps.setString(2, now);
+            ps.setLong(3, jobId);
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package ru.ndfle.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Фиксированный пул заранее открытых SQLite-соединений.
+ * PRAGMA (WAL, synchronous, busy_timeout, mmap, cache) применяются один раз при открытии,
+ * поэтому на обработку апдейта стоимость подключения больше не ложится.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String jdbcUrl;
+    private final SQLiteConfig config;
+    private final long acquireTimeoutMs;
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder stmtHits = new LongAdder();
+    private final LongAdder stmtMisses = new LongAdder();
+    private final LongAdder stmtEvictions = new LongAdder();
+
+    public ConnectionPool(String jdbcUrl, Database.Settings settings) throws SQLException {
+        this.jdbcUrl = jdbcUrl;
+        this.acquireTimeoutMs = settings.acquireTimeoutMs();
+        this.statementCacheSize = settings.statementCacheSize();
+        this.config = sqliteConfig(settings);
+        this.idle = new ArrayBlockingQueue<>(settings.poolSize());
+
+        for (int i = 0; i < settings.poolSize(); i++) {
+            PooledConnection c = open();
+            all.add(c);
+            idle.add(c);
+        }
+        log.info("SQLite pool opened: {} connections", settings.poolSize());
+    }
+
+    private static SQLiteConfig sqliteConfig(Database.Settings s) {
+        SQLiteConfig cfg = new SQLiteConfig();
+        cfg.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        cfg.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        cfg.setBusyTimeout(s.busyTimeoutMs());
+        // Negative cache_size = size in KiB (not pages)
+        cfg.setCacheSize(-Math.abs(s.cacheSizeKb()));
+        cfg.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(s.mmapSizeBytes()));
+        return cfg;
+    }
+
+    private PooledConnection open() throws SQLException {
+        return new PooledConnection(config.createConnection(jdbcUrl), this, statementCacheSize, false);
+    }
+
+    /**
+     * Отдельное соединение вне пула с теми же PRAGMA (например, для выделенного потока).
+     * Закрывается владельцем через {@link PooledConnection#closePhysically()}.
+     */
+    PooledConnection openDedicated() throws SQLException {
+        PooledConnection c = new PooledConnection(config.createConnection(jdbcUrl), this, statementCacheSize, true);
+        c.markBorrowed();
+        return c;
+    }
+
+    /**
+     * Берёт соединение из пула. Возвращённый объект нужно закрыть (try-with-resources) —
+     * close() возвращает соединение в пул, а не закрывает его.
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        PooledConnection pc = idle.poll();
+        if (pc == null) {
+            long start = System.nanoTime();
+            try {
+                pc = idle.poll(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            waits.increment();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            if (pc == null) {
+                throw new SQLException("Timed out waiting for a pooled connection (" + acquireTimeoutMs + " ms)");
+            }
+        }
+
+        acquisitions.increment();
+        inUse.incrementAndGet();
+        pc.markBorrowed();
+        return pc;
+    }
+
+    void release(PooledConnection pc) {
+        if (pc.isDedicated()) {
+            pc.closePhysically();
+            return;
+        }
+        inUse.decrementAndGet();
+        try {
+            Connection raw = pc.raw();
+            if (raw.isClosed()) {
+                pc = replace(pc);
+            } else if (!raw.getAutoCommit()) {
+                // Someone left a transaction open: don't leak it to the next borrower
+                raw.rollback();
+                raw.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            log.warn("Pooled connection reset failed: {}", e.toString());
+            pc = replace(pc);
+        }
+        if (pc == null) return;
+        if (closed) {
+            pc.closePhysically();
+            return;
+        }
+        idle.offer(pc);
+    }
+
+    private PooledConnection replace(PooledConnection broken) {
+        broken.closePhysically();
+        try {
+            PooledConnection fresh = open();
+            synchronized (all) {
+                all.remove(broken);
+                all.add(fresh);
+            }
+            return fresh;
+        } catch (SQLException e) {
+            log.warn("Failed to reopen pooled connection: {}", e.toString());
+            return null;
+        }
+    }
+
+    void statementHit() {
+        stmtHits.increment();
+    }
+
+    void statementMiss() {
+        stmtMisses.increment();
+    }
+
+    void statementEvicted() {
+        stmtEvictions.increment();
+    }
+
+    public Stats stats() {
+        return new Stats(
+                all.size(),
+                inUse.get(),
+                acquisitions.sum(),
+                waits.sum(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()),
+                stmtHits.sum(),
+                stmtMisses.sum(),
+                stmtEvictions.sum()
+        );
+    }
+
+    public record Stats(int size, int inUse, long acquisitions, long waits, long totalWaitMs, long maxWaitMs,
+                        long statementHits, long statementMisses, long statementEvictions) {}
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection c;
+        while ((c = idle.poll()) != null) c.closePhysically();
+    }
+}
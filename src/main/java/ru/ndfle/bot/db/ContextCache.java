@@ -0,0 +1,98 @@
+package ru.ndfle.bot.db;
+
+import ru.ndfle.bot.model.UserContext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный LRU-кеш {@link UserContext} по userId.
+ * Запись сквозная (write-through) — этим занимается {@link ContextRepository}, кеш только хранит объекты.
+ * <p>
+ * Кеш разбит на сегменты по userId, у каждого свой замок и своя доля ёмкости: апдейты разных
+ * пользователей не ждут друг друга. LRU точный внутри сегмента, для кеша в целом — приблизительный.
+ */
+public class ContextCache {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int maxSize;
+    private final Segment[] segments;
+    private final int mask;
+
+    // Metrics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ContextCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        // Power of two, and every segment holds at least one entry
+        int n = Math.min(MAX_SEGMENTS, Integer.highestOneBit(this.maxSize));
+        this.segments = new Segment[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(this.maxSize / n + (i < this.maxSize % n ? 1 : 0));
+        }
+    }
+
+    public UserContext get(long userId) {
+        Segment s = segmentFor(userId);
+        UserContext ctx;
+        synchronized (s) {
+            ctx = s.map.get(userId);
+        }
+        if (ctx != null) hits.increment();
+        else misses.increment();
+        return ctx;
+    }
+
+    public void put(UserContext ctx) {
+        Segment s = segmentFor(ctx.userId);
+        synchronized (s) {
+            s.map.put(ctx.userId, ctx);
+        }
+    }
+
+    private Segment segmentFor(long userId) {
+        int h = Long.hashCode(userId);
+        // Sequential ids must not pile into one segment
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return segments[h & mask];
+    }
+
+    public Stats stats() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.map.size();
+            }
+        }
+        return new Stats(size, maxSize, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    public record Stats(int size, int maxSize, long hits, long misses, long evictions) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /** Сегмент: access-ordered LinkedHashMap под замком самого сегмента. */
+    private final class Segment {
+        final LinkedHashMap<Long, UserContext> map;
+
+        Segment(int capacity) {
+            this.map = new LinkedHashMap<>(Math.min(capacity, 1024), 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, UserContext> eldest) {
+                    if (size() <= capacity) return false;
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+    }
+}
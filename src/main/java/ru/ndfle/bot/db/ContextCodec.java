@@ -0,0 +1,289 @@
+package ru.ndfle.bot.db;
+
+import ru.ndfle.bot.menu.MenuTree;
+import ru.ndfle.bot.model.BackStack;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Компактный бинарный формат для back stack и ответов БК (колонки *_bin).
+ * Id узлов меню, ключи вопросов и варианты ответов хранятся как varint-ординалы из
+ * таблицы codec_dictionary: ординал выдаётся один раз и не меняется, даже если
+ * порядок узлов в MenuTree или вариантов в SurveyService поменяется.
+ * Свободный текст (ответы текстом) пишется inline в UTF-8.
+ */
+public class ContextCodec {
+    public static final String NODE = "node";
+    public static final String BK_KEY = "bk_key";
+    public static final String BK_VALUE = "bk_value";
+
+    private static final byte VERSION = 1;
+    private static final byte TAG_ORDINAL = 0;
+    private static final byte TAG_TEXT = 1;
+
+    private static final Query<Object[]> LOAD = Query.of(
+            "SELECT kind, value, ordinal FROM codec_dictionary ORDER BY kind, ordinal",
+            rs -> new Object[]{rs.getString(1), rs.getString(2), rs.getInt(3)});
+    private static final Update INSERT = Update.of(
+            "INSERT INTO codec_dictionary(kind, value, ordinal) VALUES(?,?,?) ON CONFLICT(kind, value) DO NOTHING");
+
+    private final Database db;
+    private final MenuTree menuTree;
+    private final Map<String, Dictionary> dictionaries = new ConcurrentHashMap<>();
+
+    public ContextCodec(Database db, MenuTree menuTree) {
+        this.db = db;
+        this.menuTree = menuTree;
+        try {
+            for (Object[] row : db.queryList(LOAD, Query.Binder.NONE)) {
+                dict((String) row[0]).load((String) row[1], (Integer) row[2]);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load codec dictionary", e);
+        }
+    }
+
+    /** Заранее выдаёт ординалы известным значениям (узлы меню, варианты опроса) одной транзакцией. */
+    public void registerAll(String kind, Collection<String> values) {
+        Dictionary d = dict(kind);
+        List<String> missing = values.stream().filter(v -> d.ordinal(v) < 0).toList();
+        if (missing.isEmpty()) return;
+        db.write(c -> {
+            for (String v : missing) d.intern(v);
+            return null;
+        }).join();
+    }
+
+    // ---------- back stack ----------
+
+    /** Узлы пишутся снизу вверх: при чтении они кладутся в стек в том же порядке. */
+    public byte[] encodeBackStack(BackStack stack) {
+        Dictionary d = dict(NODE);
+        Buf b = new Buf(2 + stack.size() * 2);
+        b.put(VERSION);
+        b.varint(stack.size());
+        for (int i = 0; i < stack.size(); i++) b.varint(d.intern(menuTree.idAt(stack.get(i))));
+        return b.toBytes();
+    }
+
+    public void decodeBackStack(byte[] data, BackStack into) {
+        Dictionary d = dict(NODE);
+        Reader r = new Reader(data);
+        r.version();
+        int n = r.varint();
+        for (int i = 0; i < n; i++) {
+            String id = d.value(r.varint());
+            int node = id == null ? -1 : menuTree.indexOf(id);
+            if (node >= 0) into.push(node);
+        }
+    }
+
+    /** Старый JSON-стек (ArrayDeque, сверху вниз) → {@link BackStack}; неизвестные узлы отбрасываются. */
+    public void fillBackStack(List<String> topFirstIds, BackStack into) {
+        for (int i = topFirstIds.size() - 1; i >= 0; i--) {
+            int node = menuTree.indexOf(topFirstIds.get(i));
+            if (node >= 0) into.push(node);
+        }
+    }
+
+    // ---------- BK answers ----------
+
+    public byte[] encodeAnswers(Map<String, String> answers) {
+        Dictionary keys = dict(BK_KEY);
+        Dictionary values = dict(BK_VALUE);
+        Buf b = new Buf(2 + answers.size() * 4);
+        b.put(VERSION);
+        b.varint(answers.size());
+        for (Map.Entry<String, String> e : answers.entrySet()) {
+            b.varint(keys.intern(e.getKey()));
+            int ord = values.ordinal(e.getValue());
+            if (ord >= 0) {
+                b.put(TAG_ORDINAL);
+                b.varint(ord);
+            } else {
+                byte[] text = (e.getValue() == null ? "" : e.getValue()).getBytes(StandardCharsets.UTF_8);
+                b.put(TAG_TEXT);
+                b.varint(text.length);
+                b.bytes(text);
+            }
+        }
+        return b.toBytes();
+    }
+
+    public void decodeAnswers(byte[] data, Map<String, String> into) {
+        Dictionary keys = dict(BK_KEY);
+        Dictionary values = dict(BK_VALUE);
+        Reader r = new Reader(data);
+        r.version();
+        int n = r.varint();
+        for (int i = 0; i < n; i++) {
+            String key = keys.value(r.varint());
+            byte tag = r.get();
+            String value = tag == TAG_ORDINAL ? values.value(r.varint()) : r.text(r.varint());
+            if (key != null) into.put(key, value);
+        }
+    }
+
+    private Dictionary dict(String kind) {
+        return dictionaries.computeIfAbsent(kind, Dictionary::new);
+    }
+
+    /**
+     * Значение ↔ ординал для одного вида. Из команды писателя новый ординал пишется в codec_dictionary
+     * на том же соединении и в том же savepoint'е до строки, которая на него ссылается: строка не может
+     * закоммититься без записи словаря, а ошибка INSERT проваливает саму команду.
+     * До COMMIT значение не подтверждено — если команду откатят, следующая ссылка повторит INSERT.
+     */
+    private final class Dictionary {
+        private final String kind;
+        private final Map<String, Integer> byValue = new ConcurrentHashMap<>();
+        /** Выданы в незакоммиченной транзакции писателя */
+        private final Set<String> unconfirmed = ConcurrentHashMap.newKeySet();
+        private volatile String[] byOrdinal = new String[16];
+        private int next = 0;
+
+        Dictionary(String kind) {
+            this.kind = kind;
+        }
+
+        synchronized void load(String value, int ordinal) {
+            ensureCapacity(ordinal);
+            byOrdinal[ordinal] = value;
+            byValue.put(value, ordinal);
+            next = Math.max(next, ordinal + 1);
+        }
+
+        int ordinal(String value) {
+            if (value == null) return -1;
+            Integer o = byValue.get(value);
+            return o == null ? -1 : o;
+        }
+
+        int intern(String value) {
+            Integer o = byValue.get(value);
+            if (o != null && !unconfirmed.contains(value)) return o;
+            synchronized (this) {
+                o = byValue.get(value);
+                if (o != null && !unconfirmed.contains(value)) return o;
+                int ord = o != null ? o : next;
+                persist(value, ord);
+                if (o == null) {
+                    next++;
+                    ensureCapacity(ord);
+                    byOrdinal[ord] = value;
+                    byValue.put(value, ord);
+                }
+                return ord;
+            }
+        }
+
+        private void persist(String value, int ord) {
+            Query.Binder binder = ps -> {
+                ps.setString(1, kind);
+                ps.setString(2, value);
+                ps.setInt(3, ord);
+            };
+            try {
+                PooledConnection c = db.writerConnection();
+                if (c != null) {
+                    c.update(INSERT, binder);
+                    unconfirmed.add(value);
+                    db.afterCommit(() -> unconfirmed.remove(value));
+                } else {
+                    // Outside a write command: a command of its own, committed before the ordinal is used
+                    db.writeUpdate(INSERT, binder).join();
+                }
+            } catch (SQLException | CompletionException e) {
+                throw new IllegalStateException("codec dictionary insert failed: " + kind + " " + value, e);
+            }
+        }
+
+        String value(int ordinal) {
+            String[] arr = byOrdinal;
+            return ordinal >= 0 && ordinal < arr.length ? arr[ordinal] : null;
+        }
+
+        private void ensureCapacity(int ordinal) {
+            if (ordinal < byOrdinal.length) return;
+            byOrdinal = Arrays.copyOf(byOrdinal, Math.max(ordinal + 1, byOrdinal.length * 2));
+        }
+    }
+
+    // ---------- varint buffer ----------
+
+    private static final class Buf {
+        private byte[] a;
+        private int n;
+
+        Buf(int cap) {
+            a = new byte[Math.max(8, cap)];
+        }
+
+        void put(byte v) {
+            if (n == a.length) a = Arrays.copyOf(a, a.length * 2);
+            a[n++] = v;
+        }
+
+        void varint(int v) {
+            while ((v & ~0x7F) != 0) {
+                put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+        }
+
+        void bytes(byte[] src) {
+            if (n + src.length > a.length) a = Arrays.copyOf(a, Math.max(a.length * 2, n + src.length));
+            System.arraycopy(src, 0, a, n, src.length);
+            n += src.length;
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(a, n);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] a;
+        private int p;
+
+        Reader(byte[] a) {
+            this.a = a;
+        }
+
+        void version() {
+            byte v = get();
+            if (v != VERSION) throw new IllegalArgumentException("Unsupported context blob version: " + v);
+        }
+
+        byte get() {
+            return a[p++];
+        }
+
+        int varint() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = a[p++];
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        String text(int len) {
+            String s = new String(a, p, len, StandardCharsets.UTF_8);
+            p += len;
+            return s;
+        }
+    }
+}
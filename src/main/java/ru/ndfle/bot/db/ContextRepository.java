@@ -3,53 +3,142 @@ package ru.ndfle.bot.db;
 import com.fasterxml.jackson.core.type.TypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.ndfle.bot.model.BackStack;
 import ru.ndfle.bot.model.ConversationState;
 import ru.ndfle.bot.model.UserContext;
 import ru.ndfle.bot.util.Json;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ContextRepository {
     private static final Logger log = LoggerFactory.getLogger(ContextRepository.class);
-    private static final TypeReference<Deque<String>> DEQUE_STR = new TypeReference<>() {};
+    private static final TypeReference<List<String>> LIST_STR = new TypeReference<>() {};
     private static final TypeReference<Map<String, String>> MAP_STR = new TypeReference<>() {};
 
+    private static final String SELECT_SQL = """
+            SELECT user_id, current_node, back_stack_json, back_stack_bin, state, bk_step, bk_answers_json, bk_answers_bin, review_stars
+            FROM user_context WHERE user_id=?
+            """;
+    // *_json is cleared once the binary column is written
+    private static final Update INSERT = Update.of("""
+            INSERT INTO user_context(user_id, current_node, back_stack_json, back_stack_bin, state, bk_step, bk_answers_json, bk_answers_bin, review_stars)
+            VALUES(?,?,'',?,?,?,'',?,?)
+            ON CONFLICT(user_id) DO UPDATE SET
+              current_node=excluded.current_node,
+              back_stack_json='',
+              back_stack_bin=excluded.back_stack_bin,
+              state=excluded.state,
+              bk_step=excluded.bk_step,
+              bk_answers_json='',
+              bk_answers_bin=excluded.bk_answers_bin,
+              review_stars=excluded.review_stars
+            """);
+
+    private record LegacyRow(long userId, String backStackJson, String answersJson) {}
+
+    private static final Query<LegacyRow> LEGACY_JSON = Query.of("""
+            SELECT user_id, back_stack_json, bk_answers_json
+            FROM user_context
+            WHERE (back_stack_bin IS NULL OR bk_answers_bin IS NULL) AND user_id > ?
+            ORDER BY user_id
+            LIMIT ?
+            """, rs -> new LegacyRow(rs.getLong(1), rs.getString(2), rs.getString(3)));
+    private static final Update MIGRATE = Update.of("""
+            UPDATE user_context
+            SET back_stack_bin=?, bk_answers_bin=?, back_stack_json='', bk_answers_json=''
+            WHERE user_id=?
+            """);
+
+    private static final UserContext.Field[] FIELDS = UserContext.Field.values();
+    /** UPDATE только по изменённым колонкам, по одному на комбинацию полей (индекс — битовая маска). */
+    private static final Update[] PARTIAL_UPDATES = new Update[1 << FIELDS.length];
+
     private final Database db;
+    private final ContextCache cache;
+    private final ContextCodec codec;
+    private final Query<UserContext> select;
+
+    // Snapshots saved but not yet committed by the writer: read-your-writes after a cache eviction
+    private final Map<Long, UserContext> pending = new ConcurrentHashMap<>();
+
+    // Unit of work of the update being handled on this thread (null = save() writes immediately)
+    private final ThreadLocal<UnitOfWork> currentWork = new ThreadLocal<>();
+
+    // Metrics
+    private final LongAdder units = new LongAdder();
+    private final LongAdder saveCalls = new LongAdder();
+    private final LongAdder rowWrites = new LongAdder();
+    private final LongAdder skippedSaves = new LongAdder();
+    private final LongAdder columnWrites = new LongAdder();
 
-    public ContextRepository(Database db) {
+    public ContextRepository(Database db, ContextCache cache, ContextCodec codec) {
         this.db = db;
+        this.cache = cache;
+        this.codec = codec;
+        this.select = Query.of(SELECT_SQL, rs -> {
+            UserContext ctx = new UserContext(rs.getLong(1));
+            ctx.currentNode = rs.getString(2);
+            byte[] backStackBin = rs.getBytes(4);
+            if (backStackBin != null) {
+                codec.decodeBackStack(backStackBin, ctx.backStack);
+            } else {
+                codec.fillBackStack(Json.fromJson(rs.getString(3), LIST_STR, List.of()), ctx.backStack);
+            }
+            ctx.state = ConversationState.valueOf(rs.getString(5));
+            ctx.bkStep = rs.getInt(6);
+            byte[] answersBin = rs.getBytes(8);
+            if (answersBin != null) {
+                codec.decodeAnswers(answersBin, ctx.bkAnswers);
+            } else {
+                ctx.bkAnswers = Json.fromJson(rs.getString(7), MAP_STR, new LinkedHashMap<>());
+            }
+            ctx.reviewStars = rs.getInt(9);
+            ctx.markClean();
+            return ctx;
+        });
     }
 
+    /**
+     * Контекст из кеша; при промахе — из ещё не закоммиченной записи или из SQLite.
+     * Возвращается живой объект кеша: изменения видны следующему апдейту этого пользователя.
+     */
     public UserContext getOrCreate(long userId) {
-        try (var c = db.getConnection()) {
-            try (var ps = c.prepareStatement("SELECT current_node, back_stack_json, state, bk_step, bk_answers_json, review_stars FROM user_context WHERE user_id=?")) {
-                ps.setLong(1, userId);
-                try (var rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        UserContext ctx = new UserContext(userId);
-                        ctx.currentNode = rs.getString(1);
-                        ctx.backStack = Json.fromJson(rs.getString(2), DEQUE_STR, new ArrayDeque<>());
-                        ctx.state = ConversationState.valueOf(rs.getString(3));
-                        ctx.bkStep = rs.getInt(4);
-                        ctx.bkAnswers = Json.fromJson(rs.getString(5), MAP_STR, new LinkedHashMap<>());
-                        ctx.reviewStars = rs.getInt(6);
-                        return ctx;
-                    }
-                }
+        UserContext cached = cache.get(userId);
+        if (cached != null) return cached;
+
+        UserContext unflushed = pending.get(userId);
+        if (unflushed != null) {
+            UserContext ctx = unflushed.copy();
+            cache.put(ctx);
+            return ctx;
+        }
+
+        try {
+            UserContext existing = db.queryOne(select, ps -> ps.setLong(1, userId));
+            if (existing != null) {
+                cache.put(existing);
+                return existing;
             }
 
             // create new
             UserContext ctx = new UserContext(userId);
             ctx.currentNode = "start";
-            ctx.backStack = new ArrayDeque<>();
+            ctx.backStack = new BackStack();
             ctx.state = ConversationState.NONE;
             ctx.bkStep = 0;
             ctx.bkAnswers = new LinkedHashMap<>();
             ctx.reviewStars = 0;
 
+            cache.put(ctx);
             save(ctx);
             return ctx;
 
@@ -59,30 +148,173 @@ public class ContextRepository {
         }
     }
 
+    /**
+     * Открывает единицу работы для текущего апдейта: до {@link UnitOfWork#close()} вызовы
+     * {@link #save} только регистрируют контекст, а при закрытии пишутся лишь изменённые колонки — один раз.
+     */
+    public UnitOfWork beginUnitOfWork() {
+        if (currentWork.get() != null) return UnitOfWork.NESTED;
+        UnitOfWork uow = new UnitOfWork(this);
+        currentWork.set(uow);
+        units.increment();
+        return uow;
+    }
+
+    /**
+     * Сохраняет контекст. Внутри единицы работы — откладывает запись до её закрытия,
+     * иначе пишет изменённые колонки сразу (сквозь кеш, асинхронно через писателя).
+     */
     public void save(UserContext ctx) {
-        try (var c = db.getConnection()) {
-            try (var ps = c.prepareStatement("""
-                    INSERT INTO user_context(user_id, current_node, back_stack_json, state, bk_step, bk_answers_json, review_stars)
-                    VALUES(?,?,?,?,?,?,?)
-                    ON CONFLICT(user_id) DO UPDATE SET
-                      current_node=excluded.current_node,
-                      back_stack_json=excluded.back_stack_json,
-                      state=excluded.state,
-                      bk_step=excluded.bk_step,
-                      bk_answers_json=excluded.bk_answers_json,
-                      review_stars=excluded.review_stars
-                    """)) {
-                ps.setLong(1, ctx.userId);
-                ps.setString(2, ctx.currentNode == null ? "start" : ctx.currentNode);
-                ps.setString(3, Json.toJson(ctx.backStack));
-                ps.setString(4, ctx.state.name());
-                ps.setInt(5, ctx.bkStep);
-                ps.setString(6, Json.toJson(ctx.bkAnswers));
-                ps.setInt(7, ctx.reviewStars);
-                ps.executeUpdate();
+        saveCalls.increment();
+        cache.put(ctx);
+        UnitOfWork uow = currentWork.get();
+        if (uow != null) {
+            uow.register(ctx);
+            return;
+        }
+        flush(ctx);
+    }
+
+    private CompletableFuture<Integer> flush(UserContext ctx) {
+        EnumSet<UserContext.Field> dirty = ctx.dirtyFields();
+        if (dirty.isEmpty()) {
+            skippedSaves.increment();
+            return CompletableFuture.completedFuture(0);
+        }
+
+        boolean insert = ctx.isNew();
+        ctx.markClean();
+        UserContext snapshot = ctx.copy();
+        pending.put(snapshot.userId, snapshot);
+        rowWrites.increment();
+        columnWrites.add(dirty.size());
+
+        CompletableFuture<Integer> f = insert
+                ? db.writeUpdate(INSERT, ps -> {
+                    ps.setLong(1, snapshot.userId);
+                    for (int i = 0; i < FIELDS.length; i++) bindField(ps, i + 2, FIELDS[i], snapshot);
+                })
+                : db.writeUpdate(partialUpdate(dirty), ps -> {
+                    int idx = 1;
+                    for (UserContext.Field field : dirty) bindField(ps, idx++, field, snapshot);
+                    ps.setLong(idx, snapshot.userId);
+                });
+        return f.whenComplete((n, e) -> {
+            pending.remove(snapshot.userId, snapshot);
+            if (e != null) log.warn("save context failed: {}", e.toString());
+        });
+    }
+
+    private Update partialUpdate(EnumSet<UserContext.Field> dirty) {
+        int mask = 0;
+        for (UserContext.Field f : dirty) mask |= 1 << f.ordinal();
+        Update u = PARTIAL_UPDATES[mask];
+        if (u == null) {
+            StringJoiner set = new StringJoiner(", ");
+            for (UserContext.Field f : dirty) set.add(assignment(f));
+            u = Update.of("UPDATE user_context SET " + set + " WHERE user_id=?");
+            PARTIAL_UPDATES[mask] = u;
+        }
+        return u;
+    }
+
+    /** SET-фрагмент с одним параметром на поле. */
+    private static String assignment(UserContext.Field f) {
+        return switch (f) {
+            case CURRENT_NODE -> "current_node=?";
+            case BACK_STACK -> "back_stack_bin=?, back_stack_json=''";
+            case STATE -> "state=?";
+            case BK_STEP -> "bk_step=?";
+            case BK_ANSWERS -> "bk_answers_bin=?, bk_answers_json=''";
+            case REVIEW_STARS -> "review_stars=?";
+        };
+    }
+
+    private void bindField(PreparedStatement ps, int idx, UserContext.Field f, UserContext ctx) throws SQLException {
+        switch (f) {
+            case CURRENT_NODE -> ps.setString(idx, ctx.currentNode == null ? "start" : ctx.currentNode);
+            case BACK_STACK -> ps.setBytes(idx, codec.encodeBackStack(ctx.backStack));
+            case STATE -> ps.setString(idx, ctx.state.name());
+            case BK_STEP -> ps.setInt(idx, ctx.bkStep);
+            case BK_ANSWERS -> ps.setBytes(idx, codec.encodeAnswers(ctx.bkAnswers));
+            case REVIEW_STARS -> ps.setInt(idx, ctx.reviewStars);
+        }
+    }
+
+    /**
+     * Переводит строки, сохранённые ещё в JSON, в бинарные колонки. Идёт порциями по user_id.
+     */
+    public int migrateLegacyJson() {
+        int migrated = 0;
+        long lastId = Long.MIN_VALUE;
+        try {
+            while (true) {
+                long after = lastId;
+                List<LegacyRow> rows = db.queryList(LEGACY_JSON, ps -> {
+                    ps.setLong(1, after);
+                    ps.setInt(2, 500);
+                });
+                if (rows.isEmpty()) break;
+                db.write(c -> {
+                    for (LegacyRow r : rows) {
+                        BackStack stack = new BackStack();
+                        codec.fillBackStack(Json.fromJson(r.backStackJson(), LIST_STR, List.of()), stack);
+                        Map<String, String> answers = Json.fromJson(r.answersJson(), MAP_STR, new LinkedHashMap<>());
+                        c.update(MIGRATE, ps -> {
+                            ps.setBytes(1, codec.encodeBackStack(stack));
+                            ps.setBytes(2, codec.encodeAnswers(answers));
+                            ps.setLong(3, r.userId());
+                        });
+                    }
+                    return rows.size();
+                }).join();
+                migrated += rows.size();
+                lastId = rows.get(rows.size() - 1).userId();
             }
         } catch (Exception e) {
-            log.warn("save context failed: {}", e.toString());
+            log.warn("context JSON migration failed after {} rows: {}", migrated, e.toString());
+        }
+        if (migrated > 0) log.info("Migrated {} user_context rows from JSON to binary", migrated);
+        return migrated;
+    }
+
+    public ContextCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    public SaveStats saveStats() {
+        return new SaveStats(units.sum(), saveCalls.sum(), rowWrites.sum(), skippedSaves.sum(), columnWrites.sum());
+    }
+
+    /** updates — закрытые единицы работы; rowWrites/updates = записей на апдейт. */
+    public record SaveStats(long updates, long saveCalls, long rowWrites, long skipped, long columnWrites) {
+        public double writesPerUpdate() {
+            return updates == 0 ? 0 : (double) rowWrites / updates;
+        }
+    }
+
+    /**
+     * Единица работы одного апдейта. Закрывать в finally / try-with-resources на том же потоке.
+     */
+    public static final class UnitOfWork implements AutoCloseable {
+        private static final UnitOfWork NESTED = new UnitOfWork(null);
+
+        private final ContextRepository repo;
+        private final Map<Long, UserContext> touched = new LinkedHashMap<>(2);
+
+        private UnitOfWork(ContextRepository repo) {
+            this.repo = repo;
+        }
+
+        private void register(UserContext ctx) {
+            touched.put(ctx.userId, ctx);
+        }
+
+        @Override
+        public void close() {
+            if (repo == null) return;
+            repo.currentWork.remove();
+            for (UserContext ctx : touched.values()) repo.flush(ctx);
         }
     }
 
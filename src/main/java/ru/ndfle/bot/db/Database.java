@@ -6,22 +6,114 @@ import org.slf4j.LoggerFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-public class Database {
+public class Database implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(Database.class);
 
+    /** Параметры пула и PRAGMA, задаются из env в {@code Main}. */
+    public record Settings(int poolSize, int busyTimeoutMs, long mmapSizeBytes, int cacheSizeKb, long acquireTimeoutMs,
+                           int statementCacheSize, int writeBatchSize) {
+        public static Settings defaults() {
+            return new Settings(4, 5000, 64L * 1024 * 1024, 16 * 1024, 10_000, 64, 256);
+        }
+    }
+
     private final String sqlitePath;
     private final String jdbcUrl;
+    private final Settings settings;
+    private volatile ConnectionPool pool;
+    private volatile WriteExecutor writer;
 
     public Database(String sqlitePath) {
+        this(sqlitePath, Settings.defaults());
+    }
+
+    public Database(String sqlitePath, Settings settings) {
         this.sqlitePath = sqlitePath;
         this.jdbcUrl = "jdbc:sqlite:" + sqlitePath;
+        this.settings = settings;
     }
 
+    /**
+     * Соединение из пула (без кеша statement'ов); close() возвращает его обратно.
+     * Для DDL и разовых запросов — репозитории используют {@link #queryOne}/{@link #update} и т.п.
+     */
     public Connection getConnection() throws Exception {
-        return DriverManager.getConnection(jdbcUrl);
+        return pool().acquire().asConnection();
+    }
+
+    public <T> T queryOne(Query<T> q, Query.Binder binder) throws SQLException {
+        try (PooledConnection c = pool().acquire()) {
+            return c.queryOne(q, binder);
+        }
+    }
+
+    public <T> List<T> queryList(Query<T> q, Query.Binder binder) throws SQLException {
+        try (PooledConnection c = pool().acquire()) {
+            return c.queryList(q, binder);
+        }
+    }
+
+    public int update(Update u, Query.Binder binder) throws SQLException {
+        try (PooledConnection c = pool().acquire()) {
+            return c.update(u, binder);
+        }
+    }
+
+    public long insert(Update u, Query.Binder binder) throws SQLException {
+        try (PooledConnection c = pool().acquire()) {
+            return c.insert(u, binder);
+        }
+    }
+
+    /**
+     * Ставит запись в очередь единственного писателя. Future завершается после COMMIT пачки.
+     */
+    public <T> CompletableFuture<T> write(WriteExecutor.WriteCommand<T> command) {
+        WriteExecutor w = writer;
+        if (w == null) throw new IllegalStateException("Database.init() was not called");
+        return w.submit(command);
+    }
+
+    public CompletableFuture<Integer> writeUpdate(Update u, Query.Binder binder) {
+        return write(c -> c.update(u, binder));
+    }
+
+    public CompletableFuture<Long> writeInsert(Update u, Query.Binder binder) {
+        return write(c -> c.insert(u, binder));
+    }
+
+    /** Write-соединение текущей команды писателя (её savepoint), или null, если вызов не из команды. */
+    PooledConnection writerConnection() {
+        WriteExecutor w = writer;
+        return w == null ? null : w.currentConnection();
+    }
+
+    /** См. {@link WriteExecutor#afterCommit}. */
+    void afterCommit(Runnable action) {
+        WriteExecutor w = writer;
+        if (w == null) throw new IllegalStateException("Database.init() was not called");
+        w.afterCommit(action);
+    }
+
+    public WriteExecutor.Stats writerStats() {
+        WriteExecutor w = writer;
+        return w == null ? new WriteExecutor.Stats(0, 0, 0, 0, 0) : w.stats();
+    }
+
+    private ConnectionPool pool() {
+        ConnectionPool p = pool;
+        if (p == null) throw new IllegalStateException("Database.init() was not called");
+        return p;
+    }
+
+    public ConnectionPool.Stats poolStats() {
+        ConnectionPool p = pool;
+        return p == null ? new ConnectionPool.Stats(0, 0, 0, 0, 0, 0, 0, 0, 0) : p.stats();
     }
 
     public void init() throws Exception {
@@ -31,6 +123,8 @@ public class Database {
             Files.createDirectories(p.getParent());
         }
 
+        pool = new ConnectionPool(jdbcUrl, settings);
+
         try (Connection c = getConnection(); Statement st = c.createStatement()) {
             st.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS users (
@@ -43,6 +137,17 @@ public class Database {
                 );
             """);
 
+            // Delivery outcome: unreachable chats are skipped by broadcasts and admin notifications
+            try {
+                st.executeUpdate("ALTER TABLE users ADD COLUMN blocked INTEGER NOT NULL DEFAULT 0;");
+            } catch (Exception ignored) {}
+            try {
+                st.executeUpdate("ALTER TABLE users ADD COLUMN last_error TEXT;");
+            } catch (Exception ignored) {}
+            try {
+                st.executeUpdate("ALTER TABLE users ADD COLUMN last_success_at TEXT;");
+            } catch (Exception ignored) {}
+
             st.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS user_context (
                   user_id INTEGER PRIMARY KEY,
@@ -60,6 +165,24 @@ public class Database {
                 st.executeUpdate("ALTER TABLE user_context ADD COLUMN review_stars INTEGER NOT NULL DEFAULT 0;");
             } catch (Exception ignored) {}
 
+            // Binary back stack / BK answers (ContextCodec); *_json kept for rows not yet migrated
+            try {
+                st.executeUpdate("ALTER TABLE user_context ADD COLUMN back_stack_bin BLOB;");
+            } catch (Exception ignored) {}
+            try {
+                st.executeUpdate("ALTER TABLE user_context ADD COLUMN bk_answers_bin BLOB;");
+            } catch (Exception ignored) {}
+
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS codec_dictionary (
+                  kind TEXT NOT NULL,
+                  value TEXT NOT NULL,
+                  ordinal INTEGER NOT NULL,
+                  PRIMARY KEY(kind, value),
+                  UNIQUE(kind, ordinal)
+                );
+            """);
+
             st.executeUpdate("""
                 CREATE TABLE IF NOT EXISTS admins (
                   user_id INTEGER PRIMARY KEY,
@@ -100,8 +223,121 @@ public class Database {
             """);
 
             st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_reviews_created_at ON reviews(created_at);");
+
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS broadcast_jobs (
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  created_by INTEGER NOT NULL,
+                  html_text TEXT NOT NULL,
+                  status TEXT NOT NULL,
+                  cursor_user_id INTEGER NOT NULL DEFAULT 0,
+                  total INTEGER NOT NULL DEFAULT 0,
+                  sent INTEGER NOT NULL DEFAULT 0,
+                  failed INTEGER NOT NULL DEFAULT 0,
+                  created_at TEXT NOT NULL,
+                  updated_at TEXT NOT NULL,
+                  finished_at TEXT
+                );
+            """);
+
+            try {
+                st.executeUpdate("ALTER TABLE broadcast_jobs ADD COLUMN segment TEXT NOT NULL DEFAULT 'ALL';");
+            } catch (Exception ignored) {}
+            try {
+                st.executeUpdate("ALTER TABLE broadcast_jobs ADD COLUMN segment_arg TEXT;");
+            } catch (Exception ignored) {}
+
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_broadcast_jobs_status ON broadcast_jobs(status);");
+
+            // Client document uploads (UploadRepository): one session per visit, files pulled from the admin inbox
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS upload_sessions (
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  user_id INTEGER NOT NULL,
+                  chat_id INTEGER NOT NULL,
+                  started_at TEXT NOT NULL,
+                  last_upload_at TEXT NOT NULL,
+                  files INTEGER NOT NULL DEFAULT 0
+                );
+            """);
+
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_upload_sessions_user ON upload_sessions(user_id, id);");
+
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS uploads (
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  session_id INTEGER NOT NULL,
+                  user_id INTEGER NOT NULL,
+                  chat_id INTEGER NOT NULL,
+                  message_id INTEGER NOT NULL,
+                  media_group_id TEXT,
+                  type TEXT NOT NULL,
+                  file_id TEXT NOT NULL,
+                  file_unique_id TEXT,
+                  file_name TEXT,
+                  file_size INTEGER,
+                  created_at TEXT NOT NULL,
+                  FOREIGN KEY(session_id) REFERENCES upload_sessions(id)
+                );
+            """);
+
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_uploads_session ON uploads(session_id, message_id);");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_uploads_user ON uploads(user_id);");
+
+            // Work routing (AssignmentRepository): sticky client -> admin, per-admin queue of events
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS assignments (
+                  user_id INTEGER PRIMARY KEY,
+                  admin_id INTEGER NOT NULL,
+                  assigned_at TEXT NOT NULL
+                );
+            """);
+
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS work_items (
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  kind TEXT NOT NULL,
+                  ref_id INTEGER NOT NULL,
+                  user_id INTEGER NOT NULL,
+                  admin_id INTEGER NOT NULL,
+                  status TEXT NOT NULL,
+                  created_at TEXT NOT NULL,
+                  closed_at TEXT
+                );
+            """);
+
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_work_items_admin_open ON work_items(admin_id, status, id);");
+
+            // Broadcast audience segments (BroadcastRepository): counts and EXISTS probes stay on indexes
+            st.executeUpdate("DROP INDEX IF EXISTS idx_users_last_seen;");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_users_last_seen_jd ON users(julianday(last_seen));");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_bk_requests_user_id ON bk_requests(user_id);");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_reviews_user_id ON reviews(user_id);");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_user_context_state ON user_context(state);");
+
+            // One row per recipient of a job: a resumed job skips whoever is already here
+            st.executeUpdate("""
+                CREATE TABLE IF NOT EXISTS broadcast_deliveries (
+                  job_id INTEGER NOT NULL,
+                  user_id INTEGER NOT NULL,
+                  status TEXT NOT NULL,
+                  error TEXT,
+                  sent_at TEXT NOT NULL,
+                  PRIMARY KEY(job_id, user_id)
+                ) WITHOUT ROWID;
+            """);
         }
 
+        writer = new WriteExecutor(pool.openDedicated(), settings.writeBatchSize());
+
         log.info("SQLite initialized at {}", Path.of(sqlitePath).toAbsolutePath());
     }
+
+    @Override
+    public void close() {
+        WriteExecutor w = writer;
+        if (w != null) w.close();
+        ConnectionPool p = pool;
+        if (p != null) p.close();
+    }
 }
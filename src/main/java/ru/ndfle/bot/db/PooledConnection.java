@@ -0,0 +1,158 @@
+package ru.ndfle.bot.db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Долгоживущее соединение пула с кешем подготовленных statement'ов (ключ — текст SQL).
+ * Парсинг SQL оплачивается один раз на соединение, а не на каждый апдейт.
+ * Не потокобезопасно: объектом владеет тот, кто взял его из пула, до close().
+ */
+public class PooledConnection implements AutoCloseable {
+    private final Connection raw;
+    private final ConnectionPool pool;
+    private final Map<String, PreparedStatement> statements;
+    private final boolean dedicated;
+    private boolean borrowed = false;
+
+    PooledConnection(Connection raw, ConnectionPool pool, int statementCacheSize, boolean dedicated) {
+        this.raw = raw;
+        this.pool = pool;
+        this.dedicated = dedicated;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) return false;
+                closeQuietly(eldest.getValue());
+                pool.statementEvicted();
+                return true;
+            }
+        };
+    }
+
+    Connection raw() {
+        return raw;
+    }
+
+    boolean isDedicated() {
+        return dedicated;
+    }
+
+    void markBorrowed() {
+        borrowed = true;
+    }
+
+    public <T> T queryOne(Query<T> q, Query.Binder binder) throws SQLException {
+        PreparedStatement ps = prepare(q.sql(), false);
+        binder.bind(ps);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? q.mapper().map(rs) : null;
+        }
+    }
+
+    public <T> List<T> queryList(Query<T> q, Query.Binder binder) throws SQLException {
+        PreparedStatement ps = prepare(q.sql(), false);
+        binder.bind(ps);
+        List<T> rows = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) rows.add(q.mapper().map(rs));
+        }
+        return rows;
+    }
+
+    public int update(Update u, Query.Binder binder) throws SQLException {
+        PreparedStatement ps = prepare(u.sql(), u.returnsKey());
+        binder.bind(ps);
+        return ps.executeUpdate();
+    }
+
+    /** Выполняет INSERT и возвращает сгенерированный id (или -1). */
+    public long insert(Update u, Query.Binder binder) throws SQLException {
+        PreparedStatement ps = prepare(u.sql(), true);
+        binder.bind(ps);
+        ps.executeUpdate();
+        try (ResultSet keys = ps.getGeneratedKeys()) {
+            return keys.next() ? keys.getLong(1) : -1;
+        }
+    }
+
+    private PreparedStatement prepare(String sql, boolean returnKeys) throws SQLException {
+        String key = returnKeys ? "K:" + sql : sql;
+        PreparedStatement ps = statements.get(key);
+        if (ps != null && !ps.isClosed()) {
+            pool.statementHit();
+            ps.clearParameters();
+            return ps;
+        }
+        pool.statementMiss();
+        ps = returnKeys
+                ? raw.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : raw.prepareStatement(sql);
+        statements.put(key, ps);
+        return ps;
+    }
+
+    /**
+     * Обычный {@link Connection} поверх этого соединения: close() возвращает его в пул.
+     * Для DDL и разовых запросов, где кеш statement'ов не нужен.
+     */
+    Connection asConnection() {
+        boolean[] released = {false};
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close" -> {
+                            if (!released[0]) {
+                                released[0] = true;
+                                close();
+                            }
+                            return null;
+                        }
+                        case "isClosed" -> {
+                            return released[0] || raw.isClosed();
+                        }
+                        default -> {
+                            if (released[0]) throw new SQLException("Connection already returned to pool");
+                            try {
+                                return method.invoke(raw, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void close() {
+        if (!borrowed) return;
+        borrowed = false;
+        pool.release(this);
+    }
+
+    /** Физически закрывает соединение вместе с кешированными statement'ами. */
+    void closePhysically() {
+        for (PreparedStatement ps : statements.values()) closeQuietly(ps);
+        statements.clear();
+        try {
+            raw.close();
+        } catch (Exception ignored) {}
+    }
+
+    private static void closeQuietly(Statement st) {
+        try {
+            st.close();
+        } catch (Exception ignored) {}
+    }
+}
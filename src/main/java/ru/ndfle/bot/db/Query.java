@@ -0,0 +1,28 @@
+package ru.ndfle.bot.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Типизированный SELECT: текст SQL + маппер строки.
+ * Объявляется константой в репозитории; по тексту SQL подготовленный statement кешируется на соединении.
+ */
+public record Query<T>(String sql, RowMapper<T> mapper) {
+
+    public static <T> Query<T> of(String sql, RowMapper<T> mapper) {
+        return new Query<>(sql, mapper);
+    }
+
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface Binder {
+        Binder NONE = ps -> {};
+
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+}
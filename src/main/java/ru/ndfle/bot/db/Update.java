@@ -0,0 +1,15 @@
+package ru.ndfle.bot.db;
+
+/**
+ * Типизированный INSERT/UPDATE/DELETE. {@code returnsKey} — нужен ли сгенерированный id.
+ */
+public record Update(String sql, boolean returnsKey) {
+
+    public static Update of(String sql) {
+        return new Update(sql, false);
+    }
+
+    public static Update returningKey(String sql) {
+        return new Update(sql, true);
+    }
+}
@@ -0,0 +1,166 @@
+package ru.ndfle.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Types;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Документы клиентов: каждый файл — строка uploads, файлы одного захода клиента
+ * (пока между ними меньше {@code sessionIdle}) — одна строка upload_sessions.
+ * Админ получает одно уведомление на сессию и открывает файлы из входящих по запросу.
+ */
+public class UploadRepository {
+    private static final Logger log = LoggerFactory.getLogger(UploadRepository.class);
+
+    /** Файл из сообщения клиента. */
+    public record NewFile(int messageId, String mediaGroupId, String type, String fileId, String fileUniqueId,
+                          String fileName, Long fileSize) {}
+
+    /** Итог записи пачки: сессия и была ли она открыта этой пачкой. */
+    public record Recorded(long sessionId, boolean newSession, int files) {}
+
+    /** Сессия для списка входящих; имя клиента — из users. */
+    public record Session(long id,
+                          long userId,
+                          long chatId,
+                          String username,
+                          String firstName,
+                          String lastName,
+                          String startedAt,
+                          String lastUploadAt,
+                          int files) {}
+
+    public record Upload(long id, long chatId, int messageId, String type, String fileName, Long fileSize) {}
+
+    private static final Query<Long> OPEN_SESSION = Query.of(
+            "SELECT id FROM upload_sessions WHERE user_id=? AND last_upload_at >= ? ORDER BY id DESC LIMIT 1",
+            rs -> rs.getLong(1));
+    private static final Update INSERT_SESSION = Update.returningKey("""
+            INSERT INTO upload_sessions(user_id, chat_id, started_at, last_upload_at, files)
+            VALUES(?,?,?,?,0)
+            """);
+    private static final Update TOUCH_SESSION = Update.of(
+            "UPDATE upload_sessions SET last_upload_at=?, files=files+? WHERE id=?");
+    private static final Update INSERT_UPLOAD = Update.of("""
+            INSERT INTO uploads(session_id, user_id, chat_id, message_id, media_group_id, type,
+                                file_id, file_unique_id, file_name, file_size, created_at)
+            VALUES(?,?,?,?,?,?,?,?,?,?,?)
+            """);
+
+    private static final String SESSION_COLUMNS = """
+            SELECT s.id, s.user_id, s.chat_id, u.username, u.first_name, u.last_name,
+                   s.started_at, s.last_upload_at, s.files
+            FROM upload_sessions s LEFT JOIN users u ON u.user_id=s.user_id
+            """;
+    private static final Query.RowMapper<Session> SESSION = rs -> new Session(
+            rs.getLong(1),
+            rs.getLong(2),
+            rs.getLong(3),
+            rs.getString(4),
+            rs.getString(5),
+            rs.getString(6),
+            rs.getString(7),
+            rs.getString(8),
+            rs.getInt(9));
+    private static final Query<Session> FIND_SESSION = Query.of(SESSION_COLUMNS + " WHERE s.id=?", SESSION);
+    private static final Query<Session> SESSIONS_BEFORE = Query.of(
+            SESSION_COLUMNS + " WHERE s.id < ? ORDER BY s.id DESC LIMIT ?", SESSION);
+    private static final Query<Upload> SESSION_FILES = Query.of("""
+            SELECT id, chat_id, message_id, type, file_name, file_size
+            FROM uploads WHERE session_id=? ORDER BY message_id
+            """, rs -> new Upload(
+            rs.getLong(1),
+            rs.getLong(2),
+            rs.getInt(3),
+            rs.getString(4),
+            rs.getString(5),
+            rs.getObject(6) == null ? null : rs.getLong(6)));
+
+    private final Database db;
+    private final Duration sessionIdle;
+
+    public UploadRepository(Database db, Duration sessionIdle) {
+        this.db = db;
+        this.sessionIdle = sessionIdle;
+    }
+
+    /**
+     * Пишет пачку файлов одной транзакцией: продолжает открытую сессию клиента или начинает новую.
+     */
+    public CompletableFuture<Recorded> recordBurst(long userId, long chatId, List<NewFile> files) {
+        OffsetDateTime nowTime = OffsetDateTime.now();
+        String now = nowTime.toString();
+        String openSince = nowTime.minus(sessionIdle).toString();
+        return db.write(c -> {
+            Long open = c.queryOne(OPEN_SESSION, ps -> {
+                ps.setLong(1, userId);
+                ps.setString(2, openSince);
+            });
+            long sessionId = open != null ? open : c.insert(INSERT_SESSION, ps -> {
+                ps.setLong(1, userId);
+                ps.setLong(2, chatId);
+                ps.setString(3, now);
+                ps.setString(4, now);
+            });
+            for (NewFile f : files) {
+                c.update(INSERT_UPLOAD, ps -> {
+                    ps.setLong(1, sessionId);
+                    ps.setLong(2, userId);
+                    ps.setLong(3, chatId);
+                    ps.setInt(4, f.messageId());
+                    ps.setString(5, f.mediaGroupId());
+                    ps.setString(6, f.type());
+                    ps.setString(7, f.fileId());
+                    ps.setString(8, f.fileUniqueId());
+                    ps.setString(9, f.fileName());
+                    if (f.fileSize() == null) ps.setNull(10, Types.INTEGER);
+                    else ps.setLong(10, f.fileSize());
+                    ps.setString(11, now);
+                });
+            }
+            c.update(TOUCH_SESSION, ps -> {
+                ps.setString(1, now);
+                ps.setInt(2, files.size());
+                ps.setLong(3, sessionId);
+            });
+            return new Recorded(sessionId, open == null, files.size());
+        });
+    }
+
+    public Session findSession(long id) {
+        try {
+            return db.queryOne(FIND_SESSION, ps -> ps.setLong(1, id));
+        } catch (Exception e) {
+            log.warn("find upload session failed: {}", e.toString());
+            return null;
+        }
+    }
+
+    /** Страница входящих: сессии с id меньше {@code beforeId}, новые сверху. */
+    public List<Session> sessionsBefore(long beforeId, int limit) {
+        try {
+            return db.queryList(SESSIONS_BEFORE, ps -> {
+                ps.setLong(1, beforeId);
+                ps.setInt(2, limit);
+            });
+        } catch (Exception e) {
+            log.warn("list upload sessions failed: {}", e.toString());
+            return new ArrayList<>();
+        }
+    }
+
+    public List<Upload> files(long sessionId) {
+        try {
+            return db.queryList(SESSION_FILES, ps -> ps.setLong(1, sessionId));
+        } catch (Exception e) {
+            log.warn("list session files failed: {}", e.toString());
+            return new ArrayList<>();
+        }
+    }
+}
@@ -4,53 +4,273 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.objects.User;
 
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class UserRepository {
+/**
+ * Профили пользователей с write-behind: upsert() лишь помечает профиль грязным,
+ * если он изменился или last_seen сдвинулся больше чем на гранулярность;
+ * грязные строки периодически пишутся одной транзакцией через писателя.
+ * <p>
+ * Здесь же — доступность чата: недоставляемые пользователи (бот заблокирован, аккаунт удалён)
+ * помечаются {@code blocked} и выпадают из рассылок и уведомлений, пока сами не напишут боту.
+ * Время последней доставки и неопасные ошибки доставки пишутся тем же write-behind.
+ */
+public class UserRepository implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(UserRepository.class);
+
+    private static final Update UPSERT = Update.of("""
+            INSERT INTO users(user_id, username, first_name, last_name, created_at, last_seen)
+            VALUES(?,?,?,?,?,?)
+            ON CONFLICT(user_id) DO UPDATE SET
+              username=excluded.username,
+              first_name=excluded.first_name,
+              last_name=excluded.last_name,
+              last_seen=excluded.last_seen,
+              blocked=CASE WHEN ? THEN blocked ELSE 0 END
+            """);
+
+    private static final Query<Long> BLOCKED_IDS = Query.of(
+            "SELECT user_id FROM users WHERE blocked=1", rs -> rs.getLong(1));
+    private static final Update MARK_SUCCESS = Update.of(
+            "UPDATE users SET last_success_at=? WHERE user_id=?");
+    private static final Update MARK_FAILURE = Update.of(
+            "UPDATE users SET blocked=CASE WHEN ? THEN 1 ELSE blocked END, last_error=? WHERE user_id=?");
+    private static final Update UNBLOCK = Update.of(
+            "UPDATE users SET blocked=0 WHERE user_id=?");
+    /** Сколько недоступных чатов держать в памяти; остальные снимаются с блокировки записью профиля */
+    private static final int MAX_BLOCKED_IN_MEMORY = 50_000;
+
+    private record Profile(String username, String firstName, String lastName, long seenAtMs) {
+        boolean sameNames(Profile o) {
+            return Objects.equals(username, o.username)
+                    && Objects.equals(firstName, o.firstName)
+                    && Objects.equals(lastName, o.lastName);
+        }
+    }
+
     private final Database db;
+    private final long lastSeenGranularityMs;
+
+    /** Последний записанный (или поставленный в запись) профиль по userId; записи старше гранулярности чистятся при сбросе */
+    private final Map<Long, Profile> written = new ConcurrentHashMap<>();
+    /** Профили, ждущие сброса в SQLite */
+    private final Map<Long, Profile> dirty = new ConcurrentHashMap<>();
+    /** Время последней доставки, ещё не сброшенное в SQLite */
+    private final Map<Long, Long> dirtySuccess = new ConcurrentHashMap<>();
+    /** Последнее записанное время доставки по chatId; записи старше гранулярности чистятся при сбросе */
+    private final Map<Long, Long> writtenSuccess = new ConcurrentHashMap<>();
+    /** Последняя неопасная ошибка доставки (429 после повторов, 400 на сообщение ...), ещё не сброшенная */
+    private final Map<Long, String> dirtyFailure = new ConcurrentHashMap<>();
+    /**
+     * Недоступные чаты, последние {@link #MAX_BLOCKED_IN_MEMORY}; грузится при старте, дальше поддерживается в памяти.
+     * Вытесненный пользователь, написав боту, снимается с блокировки вместе с записью своего профиля.
+     */
+    private final Set<Long> blocked = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > MAX_BLOCKED_IN_MEMORY;
+                }
+            }));
+    private final ScheduledExecutorService flusher;
+
+    // Metrics
+    private final LongAdder upserts = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder flushedRows = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder unreachable = new LongAdder();
 
-    public UserRepository(Database db) {
+    public UserRepository(Database db, long lastSeenGranularityMs, long flushIntervalMs) {
         this.db = db;
+        this.lastSeenGranularityMs = lastSeenGranularityMs;
+        loadBlocked();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
     }
 
     public void upsert(User u) {
-        long id = u.getId();
-        String now = OffsetDateTime.now().toString();
-        try (var c = db.getConnection()) {
-            try (var ps = c.prepareStatement("""
-                    INSERT INTO users(user_id, username, first_name, last_name, created_at, last_seen)
-                    VALUES(?,?,?,?,?,?)
-                    ON CONFLICT(user_id) DO UPDATE SET
-                      username=excluded.username,
-                      first_name=excluded.first_name,
-                      last_name=excluded.last_name,
-                      last_seen=excluded.last_seen
-                    """)) {
-                ps.setLong(1, id);
-                ps.setString(2, u.getUserName());
-                ps.setString(3, u.getFirstName());
-                ps.setString(4, u.getLastName());
-                ps.setString(5, now);
-                ps.setString(6, now);
-                ps.executeUpdate();
+        upserts.increment();
+        long now = System.currentTimeMillis();
+        Profile next = new Profile(u.getUserName(), u.getFirstName(), u.getLastName(), now);
+
+        // Wrote to us again, so the chat is reachable
+        if (blocked.remove(u.getId())) writeUnblock(u.getId());
+
+        Profile prev = written.get(u.getId());
+        if (prev != null && prev.sameNames(next) && now - prev.seenAtMs() < lastSeenGranularityMs) {
+            skipped.increment();
+            return;
+        }
+        written.put(u.getId(), next);
+        dirty.put(u.getId(), next);
+    }
+
+    public boolean isBlocked(long userId) {
+        return blocked.contains(userId);
+    }
+
+    /** Сообщение в чат доставлено: время доставки уходит в следующий сброс. */
+    public void recordSuccess(long chatId) {
+        if (blocked.remove(chatId)) writeUnblock(chatId);
+        long now = System.currentTimeMillis();
+        Long prev = writtenSuccess.get(chatId);
+        if (prev != null && now - prev < lastSeenGranularityMs) return;
+        writtenSuccess.put(chatId, now);
+        dirtySuccess.put(chatId, now);
+    }
+
+    /**
+     * При {@code unreachable} чат сразу помечается недоступным и исключается из рассылок и уведомлений
+     * до следующего сообщения от пользователя. Прочие ошибки — только last_error, со следующим сбросом.
+     */
+    public void recordFailure(long chatId, String error, boolean unreachable) {
+        String text = error == null ? null : error.length() > 200 ? error.substring(0, 200) : error;
+        if (!unreachable) {
+            // Last one wins: a burst of failed sends to one chat is a single row write
+            dirtyFailure.put(chatId, text == null ? "" : text);
+            return;
+        }
+        if (!blocked.add(chatId)) return;
+        this.unreachable.increment();
+        dirtyFailure.remove(chatId);
+        db.writeUpdate(MARK_FAILURE, ps -> {
+            ps.setBoolean(1, true);
+            ps.setString(2, text);
+            ps.setLong(3, chatId);
+        }).whenComplete((n, e) -> {
+            if (e != null) log.warn("record delivery failure for {} failed: {}", chatId, e.toString());
+        });
+    }
+
+    private void writeUnblock(long userId) {
+        db.writeUpdate(UNBLOCK, ps -> ps.setLong(1, userId)).whenComplete((n, e) -> {
+            if (e != null) log.warn("unblock {} failed: {}", userId, e.toString());
+        });
+    }
+
+    private void loadBlocked() {
+        try {
+            blocked.addAll(db.queryList(BLOCKED_IDS, Query.Binder.NONE));
+        } catch (Exception e) {
+            log.warn("load blocked users failed: {}", e.toString());
+        }
+    }
+
+    /** Сбрасывает накопленные профили и время доставок одной транзакцией; future — после коммита. */
+    public CompletableFuture<Integer> flush() {
+        long now = System.currentTimeMillis();
+        // Older entries no longer suppress anything: upsert/recordSuccess write again after the granularity
+        written.values().removeIf(p -> now - p.seenAtMs() >= lastSeenGranularityMs);
+        writtenSuccess.values().removeIf(at -> now - at >= lastSeenGranularityMs);
+        if (dirty.isEmpty() && dirtySuccess.isEmpty() && dirtyFailure.isEmpty()) return CompletableFuture.completedFuture(0);
+
+        List<Map.Entry<Long, Profile>> batch = new ArrayList<>();
+        for (Long id : dirty.keySet()) {
+            Profile p = dirty.remove(id);
+            if (p != null) batch.add(Map.entry(id, p));
+        }
+        List<Map.Entry<Long, Long>> successes = new ArrayList<>();
+        for (Long id : dirtySuccess.keySet()) {
+            Long at = dirtySuccess.remove(id);
+            if (at != null) successes.add(Map.entry(id, at));
+        }
+        List<Map.Entry<Long, String>> failures = new ArrayList<>();
+        for (Long id : dirtyFailure.keySet()) {
+            String error = dirtyFailure.remove(id);
+            if (error != null) failures.add(Map.entry(id, error));
+        }
+        if (batch.isEmpty() && successes.isEmpty() && failures.isEmpty()) return CompletableFuture.completedFuture(0);
+
+        return db.write(c -> {
+            for (var e : batch) {
+                Profile p = e.getValue();
+                String seen = OffsetDateTime.ofInstant(Instant.ofEpochMilli(p.seenAtMs()), ZoneId.systemDefault()).toString();
+                c.update(UPSERT, ps -> {
+                    ps.setLong(1, e.getKey());
+                    ps.setString(2, p.username());
+                    ps.setString(3, p.firstName());
+                    ps.setString(4, p.lastName());
+                    ps.setString(5, seen);
+                    ps.setString(6, seen);
+                    // Marked unreachable after this profile was queued: keep the mark
+                    ps.setBoolean(7, blocked.contains(e.getKey()));
+                });
+            }
+            for (var e : successes) {
+                String at = OffsetDateTime.ofInstant(Instant.ofEpochMilli(e.getValue()), ZoneId.systemDefault()).toString();
+                c.update(MARK_SUCCESS, ps -> {
+                    ps.setString(1, at);
+                    ps.setLong(2, e.getKey());
+                });
+            }
+            for (var e : failures) {
+                c.update(MARK_FAILURE, ps -> {
+                    ps.setBoolean(1, false);
+                    ps.setString(2, e.getValue().isEmpty() ? null : e.getValue());
+                    ps.setLong(3, e.getKey());
+                });
             }
+            return batch.size() + successes.size() + failures.size();
+        }).whenComplete((n, e) -> {
+            if (e != null) {
+                log.warn("flush users failed: {}", e.toString());
+                // Forget what we thought was written so the next upsert retries
+                for (var entry : batch) written.remove(entry.getKey(), entry.getValue());
+                for (var entry : successes) writtenSuccess.remove(entry.getKey(), entry.getValue());
+                for (var entry : failures) dirtyFailure.putIfAbsent(entry.getKey(), entry.getValue());
+                return;
+            }
+            flushes.increment();
+            flushedRows.add(n);
+        });
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
         } catch (Exception e) {
-            log.warn("upsert user failed: {}", e.toString());
+            log.warn("flush users failed: {}", e.toString());
         }
     }
 
-    public List<Long> listAllUserIds() {
-        List<Long> ids = new ArrayList<>();
-        try (var c = db.getConnection();
-             var st = c.createStatement();
-             var rs = st.executeQuery("SELECT user_id FROM users ORDER BY user_id")) {
-            while (rs.next()) ids.add(rs.getLong(1));
+    public Stats stats() {
+        return new Stats(upserts.sum(), skipped.sum(), flushedRows.sum(), flushes.sum(),
+                dirty.size() + dirtySuccess.size() + dirtyFailure.size(),
+                blocked.size(), unreachable.sum());
+    }
+
+    public record Stats(long upserts, long skipped, long flushedRows, long flushes, int dirty,
+                        int blocked, long markedUnreachable) {}
+
+    /** Останавливает периодический сброс и дописывает буфер (вызывать до {@link Database#close()}). */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+            flush().get(30, TimeUnit.SECONDS);
         } catch (Exception e) {
-            log.warn("listAllUserIds failed: {}", e.toString());
+            log.warn("final users flush failed: {}", e.toString());
         }
-        return ids;
     }
 }
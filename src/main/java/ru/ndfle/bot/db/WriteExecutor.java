@@ -0,0 +1,195 @@
+package ru.ndfle.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Единственный писатель SQLite: отдельный поток владеет write-соединением и
+ * выгребает очередь команд, коммитя каждую пачку одной транзакцией (group commit).
+ * Future команды завершается только после COMMIT — то есть когда запись долговечна.
+ */
+public class WriteExecutor implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WriteExecutor.class);
+
+    @FunctionalInterface
+    public interface WriteCommand<T> {
+        T apply(PooledConnection c) throws SQLException;
+    }
+
+    private record Pending<T>(WriteCommand<T> command, CompletableFuture<T> future) {}
+
+    private final PooledConnection conn;
+    private final int maxBatch;
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    /** Проверка running и постановка в очередь — под одним замком с close(): после него в очередь никто не попадёт */
+    private final Object submitLock = new Object();
+    private volatile boolean running = true;
+    /** Действия после COMMIT текущей пачки; только поток писателя */
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    /** Команды текущей пачки, откатившиеся в своём savepoint'е; только поток писателя */
+    private int failedInBatch;
+
+    // Metrics
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+
+    WriteExecutor(PooledConnection conn, int maxBatch) {
+        this.conn = conn;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.thread = new Thread(this::loop, "sqlite-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public <T> CompletableFuture<T> submit(WriteCommand<T> command) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        synchronized (submitLock) {
+            if (!running) {
+                f.completeExceptionally(new SQLException("Writer is closed"));
+                return f;
+            }
+            queue.add(new Pending<>(command, f));
+        }
+        return f;
+    }
+
+    /** Write-соединение, если вызов идёт из команды писателя (внутри её savepoint'а), иначе null. */
+    PooledConnection currentConnection() {
+        return Thread.currentThread() == thread ? conn : null;
+    }
+
+    /**
+     * Выполнит {@code action} после COMMIT пачки, в которой идёт текущая команда;
+     * если команда или пачка откатится — не выполнит. Только из команды писателя.
+     */
+    void afterCommit(Runnable action) {
+        if (Thread.currentThread() != thread) throw new IllegalStateException("Not on the writer thread");
+        afterCommit.add(action);
+    }
+
+    private void loop() {
+        List<Pending<?>> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending<?> first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                runBatch(batch);
+            } catch (InterruptedException e) {
+                // close() interrupts only to wake us up; the loop drains what's left
+            } catch (Throwable t) {
+                log.error("Writer loop error", t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void runBatch(List<Pending<?>> batch) {
+        Connection raw = conn.raw();
+        List<Runnable> completions = new ArrayList<>(batch.size());
+        failedInBatch = 0;
+        try {
+            raw.setAutoCommit(false);
+            for (Pending<?> p : batch) {
+                completions.add(runOne(raw, p));
+            }
+            raw.commit();
+        } catch (Throwable e) {
+            log.warn("Group commit of {} writes failed: {}", batch.size(), e.toString());
+            try {
+                raw.rollback();
+            } catch (Exception ignored) {}
+            for (Pending<?> p : batch) p.future().completeExceptionally(e);
+            // The whole batch failed; commands already rolled back in runOne are not counted twice
+            failed.add(batch.size());
+            afterCommit.clear();
+            return;
+        } finally {
+            try {
+                raw.setAutoCommit(true);
+            } catch (Exception ignored) {}
+        }
+
+        commands.add(batch.size());
+        batches.increment();
+        failed.add(failedInBatch);
+        maxBatchSeen.accumulateAndGet(batch.size(), Math::max);
+        List<Runnable> committed = new ArrayList<>(afterCommit);
+        afterCommit.clear();
+        // Complete only after COMMIT: callers waiting on the future see a durable write
+        for (Runnable r : completions) r.run();
+        // A failing hook must not keep the others (or the futures above) from running
+        for (Runnable r : committed) {
+            try {
+                r.run();
+            } catch (Throwable t) {
+                log.error("afterCommit hook failed", t);
+            }
+        }
+    }
+
+    /** Выполняет команду в своём savepoint'е, чтобы ошибка одной не откатила всю пачку. */
+    private <T> Runnable runOne(Connection raw, Pending<T> p) throws SQLException {
+        Savepoint sp = raw.setSavepoint();
+        int hooks = afterCommit.size();
+        try {
+            T result = p.command().apply(conn);
+            raw.releaseSavepoint(sp);
+            return () -> p.future().complete(result);
+        } catch (Throwable e) {
+            raw.rollback(sp);
+            raw.releaseSavepoint(sp);
+            afterCommit.subList(hooks, afterCommit.size()).clear();
+            failedInBatch++;
+            return () -> p.future().completeExceptionally(e);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(queue.size(), commands.sum(), batches.sum(), maxBatchSeen.get(), failed.sum());
+    }
+
+    public record Stats(int queued, long commands, long batches, long maxBatch, long failed) {}
+
+    /**
+     * Дописывает всё, что уже в очереди, и закрывает write-соединение.
+     * Команды, которые писатель не успел выполнить, завершаются ошибкой.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        SQLException closed = new SQLException("Writer is closed");
+        int dropped = 0;
+        for (Pending<?> p; (p = queue.poll()) != null; dropped++) p.future().completeExceptionally(closed);
+        if (dropped > 0) {
+            failed.add(dropped);
+            log.warn("Writer closed with {} writes not executed", dropped);
+        }
+        conn.closePhysically();
+    }
+}
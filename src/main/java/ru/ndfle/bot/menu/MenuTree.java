@@ -1,5 +1,7 @@
 package ru.ndfle.bot.menu;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,8 +21,16 @@ public class MenuTree {
 
     private final Map<String, MenuNode> nodes = new LinkedHashMap<>();
 
+    // Interned node indices for BackStack (order of put(), in-process only)
+    private final Map<String, Integer> indexById = new HashMap<>();
+    private final List<String> idByIndex = new ArrayList<>();
+
     public MenuTree() {
         build();
+        for (String id : nodes.keySet()) {
+            indexById.put(id, idByIndex.size());
+            idByIndex.add(id);
+        }
     }
 
     public MenuNode get(String id) {
@@ -33,6 +43,20 @@ public class MenuTree {
         return nodes.containsKey(id);
     }
 
+    /** Индекс узла или -1, если такого узла нет. */
+    public int indexOf(String id) {
+        Integer i = id == null ? null : indexById.get(id);
+        return i == null ? -1 : i;
+    }
+
+    public String idAt(int index) {
+        return index >= 0 && index < idByIndex.size() ? idByIndex.get(index) : "start";
+    }
+
+    public List<String> nodeIds() {
+        return List.copyOf(nodes.keySet());
+    }
+
     private void put(MenuNode node) {
         nodes.put(node.id, node);
     }
@@ -1131,6 +1155,10 @@ public class MenuTree {
                 """, kb(
                 r(action("📥 Последние заявки (БК)", "A:SURVEYS")),
                 r(action("📩 Рассылка всем пользователям", "A:BROADCAST")),
+                r(action("📣 Рассылки: статус", "A:BC:LIST")),
+                r(action("🗂 Моя очередь", "A:QUEUE")),
+                r(action("📂 Входящие документы", "A:UP:LIST")),
+                r(action("📊 Статистика", "A:STATS")),
                 r(menu("🏠 Вернуться в меню"))
         )));
     }
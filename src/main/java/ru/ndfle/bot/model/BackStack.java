@@ -0,0 +1,116 @@
+package ru.ndfle.bot.model;
+
+import java.util.Arrays;
+
+/**
+ * Стек "вернуться назад" фиксированной ёмкости: кольцевой буфер индексов узлов меню
+ * ({@code MenuTree.indexOf}). При переполнении вытесняется самый старый элемент,
+ * поэтому память и размер в БД на пользователя ограничены независимо от длины сессии.
+ */
+public final class BackStack {
+    private static volatile int defaultLimit = 16;
+
+    private final int[] ring;
+    private int bottom = 0; // index of the oldest element
+    private int size = 0;
+
+    public BackStack() {
+        this(defaultLimit);
+    }
+
+    public BackStack(int limit) {
+        this.ring = new int[Math.max(1, limit)];
+    }
+
+    /** Ёмкость для новых стеков (из env BACK_STACK_LIMIT). */
+    public static void setDefaultLimit(int limit) {
+        defaultLimit = Math.max(1, limit);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+        bottom = 0;
+    }
+
+    public void push(int node) {
+        if (size == ring.length) {
+            // Full: forget the oldest entry
+            bottom = (bottom + 1) % ring.length;
+            size--;
+        }
+        ring[(bottom + size) % ring.length] = node;
+        size++;
+    }
+
+    /** Снимает верхний элемент; -1 если стек пуст. */
+    public int pop() {
+        if (size == 0) return -1;
+        size--;
+        return ring[(bottom + size) % ring.length];
+    }
+
+    /** i-й элемент снизу (0 — самый старый). */
+    public int get(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+        return ring[(bottom + i) % ring.length];
+    }
+
+    public boolean contains(int node) {
+        for (int i = 0; i < size; i++) {
+            if (get(i) == node) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Схлопывает цикл: снимает элементы до {@code node} включительно.
+     * Возвращает false (и ничего не меняет), если узла в стеке нет.
+     */
+    public boolean trimTo(int node) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (get(i) == node) {
+                size = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public BackStack copy() {
+        BackStack c = new BackStack(ring.length);
+        for (int i = 0; i < size; i++) c.push(get(i));
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BackStack other) || other.size != size) return false;
+        for (int i = 0; i < size; i++) {
+            if (get(i) != other.get(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < size; i++) h = 31 * h + get(i);
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        int[] a = new int[size];
+        for (int i = 0; i < size; i++) a[i] = get(i);
+        return Arrays.toString(a);
+    }
+}
@@ -1,18 +1,21 @@
 package ru.ndfle.bot.model;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 
 public class UserContext {
+    /** Поля, которые хранятся в user_context и отслеживаются на изменения */
+    public enum Field { CURRENT_NODE, BACK_STACK, STATE, BK_STEP, BK_ANSWERS, REVIEW_STARS }
+
     public long userId;
 
     /** Текущий экран меню (id узла) */
     public String currentNode = "start";
 
-    /** Стек "вернуться назад" */
-    public Deque<String> backStack = new ArrayDeque<>();
+    /** Стек "вернуться назад" (индексы узлов MenuTree, ограниченной длины) */
+    public BackStack backStack = new BackStack();
 
     public ConversationState state = ConversationState.NONE;
 
@@ -25,9 +28,52 @@ public class UserContext {
     /** Оценка отзыва (1..5), пока ждём текст */
     public int reviewStars = 0;
 
+    // Последнее сохранённое состояние (null = строки в БД ещё нет)
+    private Snapshot persisted;
+
+    private record Snapshot(String currentNode, BackStack backStack, ConversationState state,
+                            int bkStep, Map<String, String> bkAnswers, int reviewStars) {}
+
     public UserContext() {}
 
     public UserContext(long userId) {
         this.userId = userId;
     }
+
+    /** Строки для этого пользователя в БД ещё нет. */
+    public boolean isNew() {
+        return persisted == null;
+    }
+
+    /** Какие поля изменились с последнего {@link #markClean()}; для новой записи — все. */
+    public EnumSet<Field> dirtyFields() {
+        if (persisted == null) return EnumSet.allOf(Field.class);
+        EnumSet<Field> dirty = EnumSet.noneOf(Field.class);
+        if (!Objects.equals(currentNode, persisted.currentNode)) dirty.add(Field.CURRENT_NODE);
+        if (!backStack.equals(persisted.backStack)) dirty.add(Field.BACK_STACK);
+        if (state != persisted.state) dirty.add(Field.STATE);
+        if (bkStep != persisted.bkStep) dirty.add(Field.BK_STEP);
+        if (!Objects.equals(bkAnswers, persisted.bkAnswers)) dirty.add(Field.BK_ANSWERS);
+        if (reviewStars != persisted.reviewStars) dirty.add(Field.REVIEW_STARS);
+        return dirty;
+    }
+
+    /** Текущие значения считаются сохранёнными. */
+    public void markClean() {
+        persisted = new Snapshot(currentNode, backStack.copy(), state,
+                bkStep, new LinkedHashMap<>(bkAnswers), reviewStars);
+    }
+
+    /** Независимая копия (коллекции копируются, признак сохранённости — тоже). */
+    public UserContext copy() {
+        UserContext c = new UserContext(userId);
+        c.currentNode = currentNode;
+        c.backStack = backStack.copy();
+        c.state = state;
+        c.bkStep = bkStep;
+        c.bkAnswers = new LinkedHashMap<>(bkAnswers);
+        c.reviewStars = reviewStars;
+        c.persisted = persisted;
+        return c;
+    }
 }
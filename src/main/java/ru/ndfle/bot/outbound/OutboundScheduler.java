@@ -0,0 +1,557 @@
+package ru.ndfle.bot.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Исходящие вызовы Telegram с учётом лимитов Bot API:
+ * <ul>
+ *   <li>общее ведро — ~30 сообщений в секунду на бота;</li>
+ *   <li>ведро на чат — 1/с для личных чатов, 20/мин для групп (chatId &lt; 0);</li>
+ *   <li>429 — повтор того же вызова через {@code retry_after}, без потери порядка.</li>
+ * </ul>
+ * В каждом чате одновременно выполняется не больше одного вызова, поэтому порядок сообщений
+ * одного класса в чате сохраняется. Разные чаты отправляются параллельно пулом отправителей.
+ * <p>
+ * Очередь разбита на полосы по {@link Priority}: диспетчер берёт самую приоритетную готовую,
+ * но полоса, которую обходят дольше её порога старения, обслуживается вне очереди.
+ * BULK получает только {@code bulkShare} общего лимита — остаток всегда свободен для
+ * интерактивных ответов, даже посреди большой рассылки.
+ */
+public class OutboundScheduler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(OutboundScheduler.class);
+
+    /**
+     * Вызов без чата (answerCallbackQuery и т.п.): идёт вне очередей чатов и их лимитов,
+     * раньше всех полос, но с общим ведром бота.
+     */
+    public static final long NO_CHAT = 0L;
+
+    private static final long IDLE_CHAT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T execute() throws TelegramApiException;
+    }
+
+    /**
+     * Итог доставки ({@link #deliver}) после всех повторов: {@code error == null} — доставлено.
+     * Правки, ответы на нажатия и пересылки сюда не попадают: их ошибка ничего не говорит о получателе.
+     */
+    @FunctionalInterface
+    public interface OutcomeListener {
+        void onOutcome(long chatId, Throwable error);
+    }
+
+    /**
+     * @param chatBurst    сколько сообщений в личный чат можно отправить подряд, прежде чем включится 1/с
+     * @param bulkShare    доля общего лимита, доступная рассылкам (0..1]
+     * @param adminAgingMs сколько готовое уведомление админу может ждать из-за интерактивного трафика
+     * @param bulkAgingMs  то же для рассылки
+     */
+    public record Settings(double globalPerSec,
+                           double chatPerSec,
+                           int chatBurst,
+                           double groupPerMin,
+                           int senderThreads,
+                           int maxRetries,
+                           double bulkShare,
+                           long adminAgingMs,
+                           long bulkAgingMs) {
+        public static Settings defaults() {
+            return new Settings(30, 1, 3, 20, 8, 3, 0.8, 2_000, 10_000);
+        }
+    }
+
+    private final Settings settings;
+    private volatile OutcomeListener outcomeListener;
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private final long[] agingNanos = new long[PRIORITIES.length];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    /** Вызовы NO_CHAT по порядку поступления; считаются в полосе INTERACTIVE */
+    private final ArrayDeque<Task<?>> unbound = new ArrayDeque<>();
+    /** retry_after после 429 на вызове NO_CHAT */
+    private long unboundNotBefore = Long.MIN_VALUE;
+    private final PriorityQueue<Ready>[] ready = newLanes(PRIORITIES.length);
+    private final TokenBucket global;
+    private final TokenBucket bulk;
+    private long readySeq = 0;
+    private long lastSweep = System.nanoTime();
+    private boolean running = true;
+    private int inFlight = 0;
+
+    // Metrics (guarded by lock)
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+    private int maxQueued = 0;
+    private long retried = 0;
+
+    public OutboundScheduler(Settings settings) {
+        this.settings = settings;
+        long now = System.nanoTime();
+        // Small bursts: the API limit is per second, a full second's worth up front would double it
+        this.global = new TokenBucket(settings.globalPerSec(), Math.max(1, settings.globalPerSec() / 10), now);
+        double bulkRate = settings.globalPerSec() * Math.min(1, Math.max(0.05, settings.bulkShare()));
+        this.bulk = new TokenBucket(bulkRate, 1, now);
+        this.agingNanos[Priority.ADMIN_NOTIFY.ordinal()] = TimeUnit.MILLISECONDS.toNanos(settings.adminAgingMs());
+        this.agingNanos[Priority.BULK.ordinal()] = TimeUnit.MILLISECONDS.toNanos(settings.bulkAgingMs());
+        for (Priority p : PRIORITIES) {
+            ready[p.ordinal()] = new PriorityQueue<>((a, b) -> {
+                int c = Long.compare(a.at, b.at);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            });
+            lanes[p.ordinal()] = new Lane();
+        }
+
+        AtomicInteger n = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(Math.max(1, settings.senderThreads()), r -> {
+            Thread t = new Thread(r, "outbound-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::loop, "outbound-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public void setOutcomeListener(OutcomeListener listener) {
+        this.outcomeListener = listener;
+    }
+
+    public <T> CompletableFuture<T> submit(long chatId, Call<T> call) {
+        return submit(chatId, Priority.INTERACTIVE, call);
+    }
+
+    /** Ставит вызов в очередь чата; future завершается ответом Telegram (или ошибкой). */
+    public <T> CompletableFuture<T> submit(long chatId, Priority priority, Call<T> call) {
+        return enqueue(chatId, priority, false, call);
+    }
+
+    /**
+     * Как {@link #submit}, для отправки сообщения в {@code chatId} (sendMessage, sendVideo ...):
+     * чат — сам получатель, поэтому итог передаётся {@link OutcomeListener}.
+     */
+    public <T> CompletableFuture<T> deliver(long chatId, Priority priority, Call<T> call) {
+        return enqueue(chatId, priority, chatId != NO_CHAT, call);
+    }
+
+    private <T> CompletableFuture<T> enqueue(long chatId, Priority priority, boolean delivery, Call<T> call) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        Task<T> task = new Task<>(call, f, chatId == NO_CHAT ? Priority.INTERACTIVE : priority, delivery, System.nanoTime());
+        lock.lock();
+        try {
+            if (!running) {
+                f.completeExceptionally(new IllegalStateException("Outbound scheduler is closed"));
+                return f;
+            }
+            if (chatId == NO_CHAT) {
+                // No chat to pace or order against: only the global bucket applies
+                unbound.add(task);
+                lanes[Priority.INTERACTIVE.ordinal()].queued++;
+                maxQueued = Math.max(maxQueued, queued());
+                changed.signal();
+                return f;
+            }
+            ChatQueue chat = chats.computeIfAbsent(chatId, this::newChat);
+            chat.tasks[priority.ordinal()].add(task);
+            lanes[priority.ordinal()].queued++;
+            maxQueued = Math.max(maxQueued, queued());
+            if (chat.ready != null && chat.lane.ordinal() > priority.ordinal()) {
+                // Chat is waiting in a lower lane: move it up, its next call is now this one.
+                // The old entry stays in that lane as stale and is dropped when it reaches the head
+                chat.ready = null;
+            }
+            if (!chat.inFlight && chat.ready == null) markReady(chat, task.enqueuedAt);
+        } finally {
+            lock.unlock();
+        }
+        return f;
+    }
+
+    private ChatQueue newChat(long chatId) {
+        long now = System.nanoTime();
+        TokenBucket bucket = chatId < 0
+                ? new TokenBucket(settings.groupPerMin() / 60d, 1, now)
+                : new TokenBucket(settings.chatPerSec(), settings.chatBurst(), now);
+        return new ChatQueue(chatId, bucket, now);
+    }
+
+    /** Под lock: чат ждёт своего токена (и retry_after) в полосе своего самого срочного вызова. */
+    private void markReady(ChatQueue chat, long now) {
+        chat.lane = chat.topPriority();
+        chat.ready = new Ready(chat, Math.max(now + chat.bucket.delayNanos(now), chat.notBefore), readySeq++);
+        ready[chat.lane.ordinal()].add(chat.ready);
+        changed.signal();
+    }
+
+    /** Под lock: первая актуальная запись полосы; устаревшие (чат поднят в другую полосу) выбрасываются. */
+    private Ready head(Priority p) {
+        PriorityQueue<Ready> q = ready[p.ordinal()];
+        Ready head = q.peek();
+        while (head != null && head.chat.ready != head) {
+            q.poll();
+            head = q.peek();
+        }
+        return head;
+    }
+
+    private void loop() {
+        lock.lock();
+        try {
+            // After close(): keep going until in-flight calls (and their 429 retries) are done
+            while (running || inFlight > 0 || queued() > 0) {
+                long now = System.nanoTime();
+                long wakeAt = Long.MAX_VALUE;
+                ChatQueue pick = null;
+
+                if (!unbound.isEmpty()) {
+                    long at = Math.max(now + global.delayNanos(now), unboundNotBefore);
+                    if (at <= now) {
+                        dispatchUnbound(now);
+                        continue;
+                    }
+                    wakeAt = at;
+                }
+
+                for (Priority p : PRIORITIES) {
+                    Ready entry = head(p);
+                    if (entry == null) continue;
+                    ChatQueue head = entry.chat;
+                    long at = entry.at;
+                    if (p == Priority.BULK) at = Math.max(at, now + bulk.delayNanos(now));
+                    if (at > now) {
+                        wakeAt = Math.min(wakeAt, at);
+                        continue;
+                    }
+                    if (pick == null) {
+                        pick = head;
+                    } else if (now - entry.at > agingNanos[p.ordinal()]) {
+                        // Starvation guard: a lower lane passed over for too long goes first once
+                        pick = head;
+                        break;
+                    }
+                }
+
+                if (pick == null) {
+                    if (wakeAt == Long.MAX_VALUE) changed.await();
+                    else changed.awaitNanos(wakeAt - now);
+                    continue;
+                }
+                long globalDelay = global.delayNanos(now);
+                if (globalDelay > 0) {
+                    changed.awaitNanos(globalDelay);
+                    continue;
+                }
+
+                ready[pick.lane.ordinal()].poll();
+                pick.ready = null;
+                Task<?> task = pick.tasks[pick.lane.ordinal()].poll();
+                global.take(now);
+                pick.bucket.take(now);
+                if (task.priority == Priority.BULK) bulk.take(now);
+                pick.inFlight = true;
+                inFlight++;
+
+                Lane lane = lanes[task.priority.ordinal()];
+                lane.queued--;
+                long waited = now - task.enqueuedAt;
+                lane.waitNanosTotal += waited;
+                lane.waitNanosMax = Math.max(lane.waitNanosMax, waited);
+                lane.dispatched++;
+
+                ChatQueue chat = pick;
+                senders.execute(() -> run(chat, task));
+                sweepIdle(now);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Под lock: первый вызов NO_CHAT уходит отправителю, с токеном общего ведра. */
+    private void dispatchUnbound(long now) {
+        Task<?> task = unbound.poll();
+        global.take(now);
+        inFlight++;
+        Lane lane = lanes[task.priority.ordinal()];
+        lane.queued--;
+        long waited = now - task.enqueuedAt;
+        lane.waitNanosTotal += waited;
+        lane.waitNanosMax = Math.max(lane.waitNanosMax, waited);
+        lane.dispatched++;
+        senders.execute(() -> runUnbound(task));
+    }
+
+    private <T> void runUnbound(Task<T> task) {
+        T result = null;
+        Throwable error = null;
+        try {
+            result = task.call.execute();
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signal();
+            Lane lane = lanes[task.priority.ordinal()];
+            Integer retryAfter = retryAfter(error);
+            if (retryAfter != null && task.attempts < settings.maxRetries()) {
+                task.attempts++;
+                retried++;
+                unboundNotBefore = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(1, retryAfter));
+                unbound.addFirst(task);
+                lane.queued++;
+                return;
+            }
+            if (error == null) lane.sent++;
+            else lane.failed++;
+        } finally {
+            lock.unlock();
+        }
+        // No chat, no outcome to record: complete outside the lock
+        if (error == null) task.future.complete(result);
+        else task.future.completeExceptionally(error);
+    }
+
+    private <T> void run(ChatQueue chat, Task<T> task) {
+        T result = null;
+        Throwable error = null;
+        try {
+            result = task.call.execute();
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        lock.lock();
+        try {
+            chat.inFlight = false;
+            inFlight--;
+            changed.signal();
+            long now = System.nanoTime();
+            Lane lane = lanes[task.priority.ordinal()];
+            Integer retryAfter = retryAfter(error);
+            if (retryAfter != null && task.attempts < settings.maxRetries()) {
+                // 429: same call again after retry_after, still ahead of everything queued behind it
+                task.attempts++;
+                retried++;
+                chat.notBefore = now + TimeUnit.SECONDS.toNanos(Math.max(1, retryAfter));
+                chat.tasks[task.priority.ordinal()].addFirst(task);
+                lane.queued++;
+                markReady(chat, now);
+                log.debug("429 for chat {}, retry in {}s", chat.chatId, retryAfter);
+                return;
+            }
+            if (error == null) lane.sent++;
+            else lane.failed++;
+            if (chat.hasTasks()) markReady(chat, now);
+            else chat.idleSince = now;
+        } finally {
+            lock.unlock();
+        }
+
+        // Complete outside the lock: callbacks may submit further calls
+        OutcomeListener listener = outcomeListener;
+        if (listener != null && task.delivery) {
+            try {
+                listener.onOutcome(chat.chatId, error);
+            } catch (RuntimeException e) {
+                log.warn("outcome listener failed: {}", e.toString());
+            }
+        }
+        if (error == null) task.future.complete(result);
+        else task.future.completeExceptionally(error);
+    }
+
+    /**
+     * Чат недоступен навсегда: бот заблокирован (403), пользователь удалён или чата нет.
+     * Повторять отправку туда бессмысленно, пока пользователь сам не напишет.
+     */
+    public static boolean isUnreachable(Throwable error) {
+        if (!(error instanceof TelegramApiRequestException re) || re.getErrorCode() == null) return false;
+        if (re.getErrorCode() == 403) return true;
+        String description = re.getApiResponse() == null ? "" : re.getApiResponse().toLowerCase(Locale.ROOT);
+        return re.getErrorCode() == 400
+                && (description.contains("chat not found") || description.contains("user is deactivated")
+                || description.contains("peer_id_invalid"));
+    }
+
+    private static Integer retryAfter(Throwable error) {
+        if (error instanceof TelegramApiRequestException re
+                && re.getErrorCode() != null && re.getErrorCode() == 429) {
+            if (re.getParameters() != null && re.getParameters().getRetryAfter() != null) {
+                return re.getParameters().getRetryAfter();
+            }
+            return 1;
+        }
+        return null;
+    }
+
+    private int queued() {
+        int q = 0;
+        for (Lane l : lanes) q += l.queued;
+        return q;
+    }
+
+    /** Под lock: забывает чаты, которые давно молчат и чьё ведро уже полное. */
+    private void sweepIdle(long now) {
+        if (now - lastSweep < IDLE_CHAT_NANOS) return;
+        lastSweep = now;
+        Iterator<ChatQueue> it = chats.values().iterator();
+        while (it.hasNext()) {
+            ChatQueue c = it.next();
+            if (!c.hasTasks() && !c.inFlight && c.ready == null
+                    && now - c.idleSince > IDLE_CHAT_NANOS && c.bucket.isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            List<LaneStats> laneStats = new ArrayList<>(PRIORITIES.length);
+            for (Priority p : PRIORITIES) {
+                Lane l = lanes[p.ordinal()];
+                laneStats.add(new LaneStats(p, l.queued, l.sent, l.failed,
+                        l.dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(l.waitNanosTotal / l.dispatched),
+                        TimeUnit.NANOSECONDS.toMillis(l.waitNanosMax)));
+            }
+            return new Stats(queued(), maxQueued, chats.size(), retried, laneStats);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public record Stats(int queued, int maxQueued, int chats, long retried, List<LaneStats> lanes) {}
+
+    /** Ожидание — от постановки в очередь до начала отправки (повтор после 429 — отдельная попытка). */
+    public record LaneStats(Priority priority, int queued, long sent, long failed, long avgWaitMs, long maxWaitMs) {}
+
+    /** Отправляет то, что уже в очереди (с учётом лимитов), и останавливает отправителей. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            dispatcher.join(TimeUnit.SECONDS.toMillis(30));
+            senders.shutdown();
+            senders.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Lane {
+        int queued;
+        long dispatched;
+        long sent;
+        long failed;
+        long waitNanosTotal;
+        long waitNanosMax;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PriorityQueue<Ready>[] newLanes(int size) {
+        return (PriorityQueue<Ready>[]) new PriorityQueue<?>[size];
+    }
+
+    /** Место чата в полосе {@code chat.lane}; актуально, пока {@code chat.ready == this}. */
+    private static final class Ready {
+        final ChatQueue chat;
+        final long at;
+        final long seq;
+
+        Ready(ChatQueue chat, long at, long seq) {
+            this.chat = chat;
+            this.at = at;
+            this.seq = seq;
+        }
+    }
+
+    private static final class ChatQueue {
+        final long chatId;
+        final TokenBucket bucket;
+        final ArrayDeque<Task<?>>[] tasks = newTasks(PRIORITIES.length);
+        Priority lane;
+        boolean inFlight;
+        /** Текущая запись в полосе; null — чат не ждёт в очереди готовых */
+        Ready ready;
+        long notBefore = Long.MIN_VALUE;
+        long idleSince;
+
+        ChatQueue(long chatId, TokenBucket bucket, long now) {
+            this.chatId = chatId;
+            this.bucket = bucket;
+            this.idleSince = now;
+            for (int i = 0; i < tasks.length; i++) tasks[i] = new ArrayDeque<>(2);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ArrayDeque<Task<?>>[] newTasks(int size) {
+            return (ArrayDeque<Task<?>>[]) new ArrayDeque<?>[size];
+        }
+
+        boolean hasTasks() {
+            for (ArrayDeque<Task<?>> q : tasks) {
+                if (!q.isEmpty()) return true;
+            }
+            return false;
+        }
+
+        Priority topPriority() {
+            for (Priority p : PRIORITIES) {
+                if (!tasks[p.ordinal()].isEmpty()) return p;
+            }
+            return Priority.BULK;
+        }
+    }
+
+    private static final class Task<T> {
+        final Call<T> call;
+        final CompletableFuture<T> future;
+        final Priority priority;
+        /** Итог — в OutcomeListener */
+        final boolean delivery;
+        final long enqueuedAt;
+        int attempts;
+
+        Task(Call<T> call, CompletableFuture<T> future, Priority priority, boolean delivery, long enqueuedAt) {
+            this.call = call;
+            this.future = future;
+            this.priority = priority;
+            this.delivery = delivery;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package ru.ndfle.bot.outbound;
+
+/** Класс исходящего трафика; порядок объявления — порядок приоритета. */
+public enum Priority {
+    /** Ответы пользователю на его действие: меню, вопросы опроса, подтверждения. */
+    INTERACTIVE,
+    /** Уведомления админам: заявки, отзывы, документы. */
+    ADMIN_NOTIFY,
+    /** Массовые рассылки. */
+    BULK
+}
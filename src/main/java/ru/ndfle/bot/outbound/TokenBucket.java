@@ -0,0 +1,43 @@
+package ru.ndfle.bot.outbound;
+
+/**
+ * Ведро токенов: {@code ratePerSec} токенов в секунду, не больше {@code burst} про запас.
+ * Не потокобезопасно — им управляет {@link OutboundScheduler} под своей блокировкой.
+ */
+final class TokenBucket {
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long last;
+
+    TokenBucket(double ratePerSec, double burst, long now) {
+        this.ratePerNano = ratePerSec / 1_000_000_000d;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.last = now;
+    }
+
+    private void refill(long now) {
+        if (now > last) {
+            tokens = Math.min(burst, tokens + (now - last) * ratePerNano);
+            last = now;
+        }
+    }
+
+    /** Через сколько наносекунд появится токен (0 — уже есть). */
+    long delayNanos(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano);
+    }
+
+    void take(long now) {
+        refill(now);
+        tokens -= 1;
+    }
+
+    /** Ведро полное — о нём можно забыть без потери ограничения. */
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+}
@@ -3,14 +3,24 @@ package ru.ndfle.bot.service;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.ParseMode;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import ru.ndfle.bot.db.AdminRepository;
+import ru.ndfle.bot.db.AssignmentRepository;
+import ru.ndfle.bot.db.AssignmentRepository.WorkItem;
+import ru.ndfle.bot.db.Audience;
 import ru.ndfle.bot.db.BkRequestRepository;
+import ru.ndfle.bot.db.BroadcastRepository.Job;
+import ru.ndfle.bot.db.BroadcastRepository.Status;
 import ru.ndfle.bot.db.ContextRepository;
+import ru.ndfle.bot.db.UploadRepository;
 import ru.ndfle.bot.db.UserRepository;
 import ru.ndfle.bot.model.ConversationState;
 import ru.ndfle.bot.model.UserContext;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 public class AdminService {
@@ -18,38 +28,93 @@ public class AdminService {
     private final ContextRepository contextRepository;
     private final BkRequestRepository bkRequestRepository;
     private final UserRepository userRepository;
+    private final BroadcastService broadcastService;
+    private final StatsService statsService;
+    private final UploadRepository uploadRepository;
+    private final AssignmentRepository assignmentRepository;
+
+    /**
+     * Снимок admin IDs, отсортированный для binarySearch: читается без блокировок и без SQLite,
+     * при добавлении/удалении заменяется новым массивом целиком.
+     */
+    private volatile long[] admins;
+    private final Object adminWriteLock = new Object();
 
     public AdminService(AdminRepository adminRepository,
                         ContextRepository contextRepository,
                         BkRequestRepository bkRequestRepository,
-                        UserRepository userRepository) {
+                        UserRepository userRepository,
+                        BroadcastService broadcastService,
+                        StatsService statsService,
+                        UploadRepository uploadRepository,
+                        AssignmentRepository assignmentRepository) {
         this.adminRepository = adminRepository;
         this.contextRepository = contextRepository;
         this.bkRequestRepository = bkRequestRepository;
         this.userRepository = userRepository;
+        this.broadcastService = broadcastService;
+        this.statsService = statsService;
+        this.uploadRepository = uploadRepository;
+        this.assignmentRepository = assignmentRepository;
+        this.admins = adminRepository.listAdminIds().stream().mapToLong(Long::longValue).sorted().toArray();
     }
 
     public boolean isAdmin(long userId) {
-        return adminRepository.isAdmin(userId);
+        return Arrays.binarySearch(admins, userId) >= 0;
     }
 
-    public Set<Long> listAdmins() {
-        return adminRepository.listAdminIds();
+    /** Админы для уведомлений: без тех, кому доставить нельзя (заблокировали бота). */
+    public long[] listAdmins() {
+        long[] snapshot = admins;
+        int reachable = 0;
+        for (long id : snapshot) if (!userRepository.isBlocked(id)) reachable++;
+        if (reachable == snapshot.length) return snapshot;
+
+        long[] out = new long[reachable];
+        int i = 0;
+        for (long id : snapshot) if (!userRepository.isBlocked(id)) out[i++] = id;
+        return out;
     }
 
     public boolean addAdmin(long userId) {
-        return adminRepository.addAdmin(userId);
+        synchronized (adminWriteLock) {
+            if (!adminRepository.addAdmin(userId)) return false;
+            int at = Arrays.binarySearch(admins, userId);
+            if (at < 0) {
+                int pos = -at - 1;
+                long[] next = new long[admins.length + 1];
+                System.arraycopy(admins, 0, next, 0, pos);
+                next[pos] = userId;
+                System.arraycopy(admins, pos, next, pos + 1, admins.length - pos);
+                admins = next;
+            }
+            return true;
+        }
     }
 
     public boolean removeAdmin(long userId) {
-        return adminRepository.removeAdmin(userId);
+        synchronized (adminWriteLock) {
+            if (!adminRepository.removeAdmin(userId)) return false;
+            int at = Arrays.binarySearch(admins, userId);
+            if (at >= 0) {
+                long[] next = new long[admins.length - 1];
+                System.arraycopy(admins, 0, next, 0, at);
+                System.arraycopy(admins, at + 1, next, at, admins.length - at - 1);
+                admins = next;
+            }
+            return true;
+        }
     }
 
     public BotApiMethod<?> handleAction(long chatId, UserContext ctx, String action) {
+        if (action.startsWith("A:BC:")) return broadcastAction(chatId, action.substring("A:BC:".length()));
+        if (action.startsWith("A:UP:LIST")) return uploadInbox(chatId, action.substring("A:UP:LIST".length()));
+        if (action.startsWith("A:QUEUE")) return queueAction(chatId, ctx.userId, action.substring("A:QUEUE".length()));
         return switch (action) {
             case "A:SURVEYS" -> listSurveys(chatId);
             case "A:BROADCAST" -> startBroadcast(chatId, ctx);
             case "A:ADMINS" -> adminsInfo(chatId);
+            case "A:STATS" -> html(chatId, statsService.renderHtml());
             default -> html(chatId, "Неизвестная команда админа: " + escapeHtml(action));
         };
     }
@@ -78,31 +143,271 @@ public class AdminService {
         return html(chatId, """
                 📩 <b>Рассылка</b>
 
-                Отправьте следующим сообщением текст, который нужно разослать всем пользователям бота.
+                Отправьте следующим сообщением текст рассылки.
 
                 ⚠️ Внимание:
-                • Рассылка уйдёт всем пользователям, которые когда‑либо писали боту.
+                • Затем выберите аудиторию (все, активные, прошедшие опрос БК и т.д.) — бот покажет число получателей до запуска.
+                • Рассылка идёт в фоне; прогресс — в «📣 Рассылки: статус».
                 • Можно использовать HTML (<b>жирный</b>, <i>курсив</i>, <code>код</code>).
 
                 Чтобы отменить — напишите /start или нажмите «Вернуться в меню».
                 """);
     }
 
-    public BroadcastResult performBroadcast(long chatId, UserContext ctx, String htmlText) {
+    /** Создаёт черновик рассылки; ответ — карточка с выбором аудитории и кнопкой запуска. */
+    public BotApiMethod<?> performBroadcast(long chatId, UserContext ctx, String htmlText) {
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
 
-        var userIds = userRepository.listAllUserIds();
-        return new BroadcastResult(userIds, htmlText);
+        long jobId = broadcastService.create(ctx.userId, htmlText);
+        if (jobId <= 0) return html(chatId, "⚠️ Не удалось создать рассылку, попробуйте ещё раз.");
+        return jobCard(chatId, broadcastService.progress(jobId));
+    }
+
+    /**
+     * A:BC:LIST, A:BC:STATUS:id, A:BC:SEG:id:segment[:arg], A:BC:START:id,
+     * A:BC:PAUSE:id, A:BC:RESUME:id, A:BC:CANCEL:id
+     */
+    private BotApiMethod<?> broadcastAction(long chatId, String command) {
+        if (command.equals("LIST")) return listBroadcasts(chatId);
+
+        String[] parts = command.split(":", 3);
+        long jobId;
+        Audience audience = null;
+        try {
+            jobId = Long.parseLong(parts[1]);
+            if (parts[0].equals("SEG")) audience = Audience.parse(parts[2]);
+        } catch (RuntimeException e) {
+            return html(chatId, "Неизвестная команда рассылки: " + escapeHtml(command));
+        }
+        boolean changed = switch (parts[0]) {
+            case "SEG" -> broadcastService.setAudience(jobId, audience);
+            case "START" -> broadcastService.launch(jobId);
+            case "PAUSE" -> broadcastService.pause(jobId);
+            case "RESUME" -> broadcastService.resume(jobId);
+            case "CANCEL" -> broadcastService.cancel(jobId);
+            default -> true;
+        };
+        Job job = broadcastService.progress(jobId);
+        if (job == null) return html(chatId, "Рассылка #" + jobId + " не найдена.");
+        if (!changed) return html(chatId, "⚠️ Рассылка #" + jobId + " уже " + statusLabel(job.status()) + ".");
+        return jobCard(chatId, job);
+    }
+
+    private BotApiMethod<?> listBroadcasts(long chatId) {
+        List<Job> jobs = broadcastService.recent(5);
+        if (jobs.isEmpty()) return html(chatId, "📭 <b>Рассылок пока не было.</b>");
+
+        StringBuilder sb = new StringBuilder("📣 <b>Последние рассылки</b>\n\n");
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (Job j : jobs) {
+            sb.append("• #").append(j.id())
+                    .append(" — ").append(statusLabel(j.status()))
+                    .append(" — ").append(j.processed()).append('/').append(j.total())
+                    .append(" — ").append(escapeHtml(j.createdAt()))
+                    .append("\n");
+            rows.add(List.of(button("#" + j.id(), "A:BC:STATUS:" + j.id())));
+        }
+        SendMessage sm = (SendMessage) html(chatId, sb.toString());
+        sm.setReplyMarkup(markup(rows));
+        return sm;
+    }
+
+    private BotApiMethod<?> jobCard(long chatId, Job job) {
+        if (job.status() == Status.DRAFT) return draftCard(chatId, job);
+
+        String text = "📣 <b>Рассылка #" + job.id() + "</b>\n\n"
+                + "Статус: " + statusLabel(job.status()) + "\n"
+                + "Аудитория: " + escapeHtml(job.audience().label()) + "\n"
+                + "Получателей: <b>" + job.total() + "</b>\n"
+                + "Успешно: <b>" + job.sent() + "</b>\n"
+                + "Ошибок: <b>" + job.failed() + "</b>";
+
+        List<InlineKeyboardButton> controls = new ArrayList<>();
+        if (job.status() == Status.RUNNING) controls.add(button("⏸ Пауза", "A:BC:PAUSE:" + job.id()));
+        if (job.status() == Status.PAUSED) controls.add(button("▶️ Продолжить", "A:BC:RESUME:" + job.id()));
+        if (job.status() == Status.RUNNING || job.status() == Status.PAUSED) {
+            controls.add(button("✖️ Отменить", "A:BC:CANCEL:" + job.id()));
+        }
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        if (!controls.isEmpty()) rows.add(controls);
+        rows.add(List.of(button("🔄 Обновить", "A:BC:STATUS:" + job.id())));
+
+        SendMessage sm = (SendMessage) html(chatId, text);
+        sm.setReplyMarkup(markup(rows));
+        return sm;
+    }
+
+    /** Черновик: аудитория с числом получателей, выбор сегмента, запуск. */
+    private BotApiMethod<?> draftCard(long chatId, Job job) {
+        String text = "📝 <b>Черновик рассылки #" + job.id() + "</b>\n\n"
+                + "Аудитория: " + escapeHtml(job.audience().label()) + "\n"
+                + "Получателей: <b>" + job.total() + "</b>\n\n"
+                + "Выберите аудиторию и нажмите «Запустить».";
+
+        String seg = "A:BC:SEG:" + job.id() + ":";
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        rows.add(List.of(button("👥 Все", seg + "ALL"),
+                button("🕐 7 дн.", seg + "ACTIVE:7"),
+                button("🕐 30 дн.", seg + "ACTIVE:30")));
+        rows.add(List.of(button("📝 Прошли БК", seg + "BK_DONE"),
+                button("⭐ Оставили отзыв", seg + "REVIEWED")));
+        rows.add(List.of(button("⏸ Застряли в опросе", seg + "IN_STATE:" + ConversationState.BK_WAIT_POSITION_TEXT),
+                button("📎 Ждут документы", seg + "IN_STATE:" + ConversationState.DOC_UPLOAD_WAIT_MEDIA)));
+        rows.add(List.of(button("🚀 Запустить (" + job.total() + ")", "A:BC:START:" + job.id()),
+                button("✖️ Отменить", "A:BC:CANCEL:" + job.id())));
+
+        SendMessage sm = (SendMessage) html(chatId, text);
+        sm.setReplyMarkup(markup(rows));
+        return sm;
+    }
+
+    private static String statusLabel(Status status) {
+        return switch (status) {
+            case DRAFT -> "📝 черновик";
+            case RUNNING -> "⏳ идёт";
+            case PAUSED -> "⏸ на паузе";
+            case CANCELLED -> "✖️ отменена";
+            case DONE -> "✅ завершена";
+        };
+    }
+
+    private static InlineKeyboardButton button(String text, String data) {
+        InlineKeyboardButton b = new InlineKeyboardButton();
+        b.setText(text);
+        b.setCallbackData(data);
+        return b;
     }
 
-    public record BroadcastResult(java.util.List<Long> userIds, String htmlText) {}
+    private static InlineKeyboardMarkup markup(List<List<InlineKeyboardButton>> rows) {
+        InlineKeyboardMarkup m = new InlineKeyboardMarkup();
+        m.setKeyboard(rows);
+        return m;
+    }
+
+    private static final int QUEUE_PAGE = 10;
+
+    /** A:QUEUE — своя очередь, A:QUEUE:&lt;id&gt; — страница старше id, A:QUEUE:DONE:&lt;id&gt; — закрыть элемент. */
+    private BotApiMethod<?> queueAction(long chatId, long adminId, String tail) {
+        long before = Long.MAX_VALUE;
+        try {
+            if (tail.startsWith(":DONE:")) {
+                long itemId = Long.parseLong(tail.substring(":DONE:".length()));
+                if (!assignmentRepository.close(itemId, adminId)) {
+                    return html(chatId, "⚠️ Элемент #" + itemId + " уже закрыт или не в вашей очереди.");
+                }
+            } else if (tail.startsWith(":")) {
+                before = Long.parseLong(tail.substring(1));
+            }
+        } catch (NumberFormatException e) {
+            return html(chatId, "Неизвестная команда очереди: " + escapeHtml(tail));
+        }
+
+        List<WorkItem> items = assignmentRepository.openItems(adminId, before, QUEUE_PAGE);
+        if (items.isEmpty()) {
+            return html(chatId, before == Long.MAX_VALUE ? "✅ <b>Ваша очередь пуста.</b>" : "Больше элементов нет.");
+        }
+
+        StringBuilder sb = new StringBuilder("🗂 <b>Моя очередь</b>\n\n");
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (WorkItem it : items) {
+            sb.append("• #").append(it.id())
+                    .append(" — ").append(kindLabel(it.kind())).append(" #").append(it.refId())
+                    .append(" — <a href=\"tg://user?id=").append(it.userId()).append("\">").append(it.userId()).append("</a>")
+                    .append(" — ").append(escapeHtml(it.createdAt()))
+                    .append("\n");
+            List<InlineKeyboardButton> row = new ArrayList<>();
+            if (it.kind() == AssignmentRepository.Kind.UPLOAD) row.add(button("📂 #" + it.refId(), "A:UP:S:" + it.refId()));
+            row.add(button("✅ Закрыть #" + it.id(), "A:QUEUE:DONE:" + it.id()));
+            rows.add(row);
+        }
+        if (items.size() == QUEUE_PAGE) {
+            rows.add(List.of(button("⬇️ Старше", "A:QUEUE:" + items.get(items.size() - 1).id())));
+        }
+        SendMessage sm = (SendMessage) html(chatId, sb.toString());
+        sm.setReplyMarkup(markup(rows));
+        return sm;
+    }
+
+    private static String kindLabel(AssignmentRepository.Kind kind) {
+        return switch (kind) {
+            case BK -> "📝 заявка БК";
+            case REVIEW -> "⭐ отзыв";
+            case UPLOAD -> "📎 документы";
+        };
+    }
+
+    private static final int INBOX_PAGE = 10;
+
+    /** Входящие документы: сессии клиентов, новые сверху; A:UP:LIST:&lt;id&gt; — страница старше id. */
+    private BotApiMethod<?> uploadInbox(long chatId, String tail) {
+        long before = Long.MAX_VALUE;
+        if (tail.startsWith(":")) {
+            try {
+                before = Long.parseLong(tail.substring(1));
+            } catch (NumberFormatException ignored) {}
+        }
+        List<UploadRepository.Session> sessions = uploadRepository.sessionsBefore(before, INBOX_PAGE);
+        if (sessions.isEmpty()) {
+            return html(chatId, before == Long.MAX_VALUE ? "📭 <b>Документов пока нет.</b>" : "Больше документов нет.");
+        }
+
+        StringBuilder sb = new StringBuilder("📂 <b>Входящие документы</b>\n\n");
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (UploadRepository.Session s : sessions) {
+            String name = clientName(s);
+            sb.append("• #").append(s.id())
+                    .append(" — ").append(escapeHtml(name))
+                    .append(" — файлов: ").append(s.files())
+                    .append(" — ").append(escapeHtml(s.lastUploadAt()))
+                    .append("\n");
+            rows.add(List.of(button("#" + s.id() + " · " + name + " · " + s.files(), "A:UP:S:" + s.id())));
+        }
+        if (sessions.size() == INBOX_PAGE) {
+            rows.add(List.of(button("⬇️ Старше", "A:UP:LIST:" + sessions.get(sessions.size() - 1).id())));
+        }
+        SendMessage sm = (SendMessage) html(chatId, sb.toString());
+        sm.setReplyMarkup(markup(rows));
+        return sm;
+    }
+
+    /** Место под «…и ещё N» в конце обрезанного списка файлов */
+    private static final int MORE_FILES_RESERVE = 32;
+
+    /** Сводка по сессии перед пересылкой её файлов; список файлов обрезается до одного сообщения. */
+    public String renderUploadSession(UploadRepository.Session s, List<UploadRepository.Upload> files) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("📎 <b>Документы #").append(s.id()).append("</b>\n")
+                .append("👤 <a href=\"tg://user?id=").append(s.userId()).append("\">")
+                .append(escapeHtml(clientName(s))).append("</a>")
+                .append(s.username() == null ? "" : " @" + escapeHtml(s.username())).append("\n")
+                .append("🕐 ").append(escapeHtml(s.startedAt())).append(" — ").append(escapeHtml(s.lastUploadAt())).append("\n\n");
+        for (int i = 0; i < files.size(); i++) {
+            UploadRepository.Upload f = files.get(i);
+            StringBuilder line = new StringBuilder("• ").append(f.type());
+            if (f.fileName() != null) line.append(" ").append(escapeHtml(f.fileName()));
+            if (f.fileSize() != null) line.append(" (").append(f.fileSize() / 1024).append(" КБ)");
+            line.append("\n");
+            // Keep room for the "and N more" tail: the list must fit into one message
+            if (sb.length() + line.length() + MORE_FILES_RESERVE > NotificationService.MAX_TEXT) {
+                sb.append("…и ещё ").append(files.size() - i);
+                break;
+            }
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static String clientName(UploadRepository.Session s) {
+        String name = ((s.firstName() == null ? "" : s.firstName()) + " " + (s.lastName() == null ? "" : s.lastName())).trim();
+        return name.isEmpty() ? String.valueOf(s.userId()) : name;
+    }
 
     private BotApiMethod<?> adminsInfo(long chatId) {
-        Set<Long> admins = adminRepository.listAdminIds();
-        String list = admins.isEmpty()
+        long[] snapshot = admins;
+        String list = snapshot.length == 0
                 ? "—"
-                : admins.stream().map(String::valueOf).collect(Collectors.joining(", "));
+                : Arrays.stream(snapshot).mapToObj(String::valueOf).collect(Collectors.joining(", "));
 
         return html(chatId, """
                 👥 <b>Администраторы</b>
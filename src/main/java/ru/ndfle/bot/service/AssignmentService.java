@@ -0,0 +1,52 @@
+package ru.ndfle.bot.service;
+
+import ru.ndfle.bot.db.AssignmentRepository;
+import ru.ndfle.bot.db.AssignmentRepository.Kind;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кому из админов отдать событие клиента. Клиент закрепляется за админом при первом событии:
+ * по кругу (ROUND_ROBIN) или тому, у кого меньше открытых элементов (LEAST_OPEN, ничьи — по кругу).
+ * Уведомление уходит одному админу, сколько бы их ни было.
+ */
+public class AssignmentService {
+
+    public enum Strategy { ROUND_ROBIN, LEAST_OPEN }
+
+    private final AssignmentRepository repository;
+    private final AdminService adminService;
+    private final Strategy strategy;
+    private final AtomicLong turn = new AtomicLong();
+
+    public AssignmentService(AssignmentRepository repository, AdminService adminService, Strategy strategy) {
+        this.repository = repository;
+        this.adminService = adminService;
+        this.strategy = strategy;
+    }
+
+    /** Future — id админа, в чью очередь попало событие, или -1, если админов нет. */
+    public CompletableFuture<Long> route(Kind kind, long refId, long userId) {
+        return repository.route(kind, refId, userId, adminService.listAdmins(), this::choose);
+    }
+
+    private long choose(long[] admins, Map<Long, Integer> openCounts) {
+        int n = admins.length;
+        int start = (int) Math.floorMod(turn.getAndIncrement(), (long) n);
+        if (strategy == Strategy.ROUND_ROBIN) return admins[start];
+
+        long best = admins[start];
+        int bestOpen = openCounts.getOrDefault(best, 0);
+        for (int i = 1; i < n; i++) {
+            long candidate = admins[(start + i) % n];
+            int open = openCounts.getOrDefault(candidate, 0);
+            if (open < bestOpen) {
+                best = candidate;
+                bestOpen = open;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,252 @@
+package ru.ndfle.bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.ndfle.bot.db.Audience;
+import ru.ndfle.bot.db.BroadcastRepository;
+import ru.ndfle.bot.db.BroadcastRepository.Job;
+import ru.ndfle.bot.db.BroadcastRepository.Status;
+import ru.ndfle.bot.outbound.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Фоновые рассылки: задание живёт в broadcast_jobs — сначала черновиком, где выбирается
+ * аудитория, затем после запуска рабочий поток отправляет его порциями
+ * (через планировщик исходящих в полосе BULK) и после каждой порции сохраняет прогресс.
+ * Задания в статусе RUNNING подхватываются заново при старте бота.
+ * Сбой порции (запись в БД, ожидание отправок) повторяется с паузой; после {@link #CHUNK_ATTEMPTS}
+ * неудач подряд задание ставится на паузу, и автор получает уведомление — продолжить можно из карточки.
+ */
+public class BroadcastService implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastService.class);
+
+    /** Попыток одной порции, прежде чем задание встанет на паузу */
+    private static final int CHUNK_ATTEMPTS = 4;
+    private static final long FIRST_BACKOFF_MS = 1_000;
+
+    /** Отправка HTML-сообщения в чат; выставляется ботом в {@link #start(Sender)}. */
+    @FunctionalInterface
+    public interface Sender {
+        CompletableFuture<?> send(long chatId, String html, Priority priority);
+    }
+
+    private final BroadcastRepository repository;
+    private final int chunkSize;
+    private final ExecutorService worker;
+    private final Map<Long, Live> live = new ConcurrentHashMap<>();
+    private volatile Sender sender;
+    private volatile boolean closing = false;
+
+    /** Счётчики выполняемого задания, включая ещё не сохранённую порцию */
+    private record Live(AtomicInteger sent, AtomicInteger failed) {}
+
+    public BroadcastService(BroadcastRepository repository, int chunkSize) {
+        this.repository = repository;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "broadcast-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Подключает отправителя и продолжает задания, прерванные остановкой бота. */
+    public void start(Sender sender) {
+        this.sender = sender;
+        for (long id : repository.idsWithStatus(Status.RUNNING)) {
+            log.info("Resuming broadcast job #{}", id);
+            worker.execute(() -> run(id));
+        }
+    }
+
+    /** Создаёт черновик рассылки на всех пользователей; возвращает id (или -1). */
+    public long create(long adminId, String htmlText) {
+        return repository.create(adminId, htmlText).handle((v, e) -> {
+            if (e != null) log.warn("create broadcast job failed: {}", e.toString());
+            return e == null ? v : -1L;
+        }).join();
+    }
+
+    /** Меняет аудиторию черновика; false, если задание уже запущено. */
+    public boolean setAudience(long id, Audience audience) {
+        Job job = repository.find(id);
+        return job != null && job.status() == Status.DRAFT && repository.setAudience(job, audience).join();
+    }
+
+    /** Запускает черновик, пересчитав получателей на момент старта. */
+    public boolean launch(long id) {
+        Job job = repository.find(id);
+        if (job == null || job.status() != Status.DRAFT) return false;
+        repository.setAudience(job, job.audience()).join();
+        boolean ok = repository.transition(id, Status.RUNNING, Status.DRAFT).join();
+        if (ok) worker.execute(() -> run(id));
+        return ok;
+    }
+
+    public boolean pause(long id) {
+        return repository.transition(id, Status.PAUSED, Status.RUNNING).join();
+    }
+
+    public boolean resume(long id) {
+        boolean ok = repository.transition(id, Status.RUNNING, Status.PAUSED).join();
+        if (ok) worker.execute(() -> run(id));
+        return ok;
+    }
+
+    public boolean cancel(long id) {
+        return repository.transition(id, Status.CANCELLED, Status.DRAFT, Status.RUNNING, Status.PAUSED).join();
+    }
+
+    /** Задание с живыми счётчиками, если оно сейчас отправляется. */
+    public Job progress(long id) {
+        Job job = repository.find(id);
+        Live l = job == null ? null : live.get(id);
+        if (l == null) return job;
+        return new Job(job.id(), job.createdBy(), job.htmlText(), job.audience(), job.status(), job.cursorUserId(),
+                job.total(), l.sent().get(), l.failed().get(), job.createdAt(), job.finishedAt());
+    }
+
+    public List<Job> recent(int limit) {
+        List<Job> jobs = new ArrayList<>();
+        for (Job j : repository.recent(limit)) jobs.add(live.containsKey(j.id()) ? progress(j.id()) : j);
+        return jobs;
+    }
+
+    private void run(long jobId) {
+        Job job = repository.find(jobId);
+        if (job == null || job.status() != Status.RUNNING) return;
+
+        Live counters = new Live(new AtomicInteger(job.sent()), new AtomicInteger(job.failed()));
+        live.put(jobId, counters);
+        try {
+            long cursor = job.cursorUserId();
+            int attempt = 0;
+            while (!closing) {
+                try {
+                    // Re-read between chunks: pause/cancel take effect at the next chunk boundary
+                    job = repository.find(jobId);
+                    // find() logs and returns null on a read error: retried like any other failure
+                    if (job == null) throw new IllegalStateException("broadcast job #" + jobId + " is not readable");
+                    if (job.status() != Status.RUNNING) return;
+                    Long next = runChunk(job, cursor, counters);
+                    if (next == null) return;
+                    cursor = next;
+                    attempt = 0;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (++attempt >= CHUNK_ATTEMPTS) {
+                        stopAfterFailure(jobId, e);
+                        return;
+                    }
+                    long backoff = FIRST_BACKOFF_MS << (2 * (attempt - 1));
+                    log.warn("Broadcast job #{} chunk failed (attempt {}), retrying in {} ms: {}",
+                            jobId, attempt, backoff, e.toString());
+                    // Deliveries already recorded are skipped by nextRecipients, so the retry only sends the rest
+                    if (!sleep(backoff)) return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            live.remove(jobId);
+        }
+    }
+
+    /** Отправляет порцию после {@code cursor} и сохраняет прогресс; null — получателей не осталось, задание завершено. */
+    private Long runChunk(Job job, long cursor, Live counters) throws Exception {
+        long jobId = job.id();
+        List<Long> chunk = repository.nextRecipients(job, cursor, chunkSize);
+        if (chunk.isEmpty()) {
+            repository.checkpoint(jobId, cursor).join();
+            repository.finish(jobId).join();
+            notifyDone(jobId);
+            return null;
+        }
+
+        String html = job.htmlText();
+        List<CompletableFuture<?>> pending = new ArrayList<>(chunk.size());
+        for (long userId : chunk) {
+            pending.add(sender.send(userId, html, Priority.BULK)
+                    .handle((r, e) -> e == null ? null : errorText(e))
+                    .thenCompose(error -> repository.recordDelivery(jobId, userId, error)
+                            // Counted once the delivery is recorded: a retried chunk doesn't count it twice
+                            .thenApply(n -> (error == null ? counters.sent() : counters.failed()).incrementAndGet())));
+        }
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get();
+
+        long next = chunk.get(chunk.size() - 1);
+        repository.checkpoint(jobId, next).join();
+        return next;
+    }
+
+    /** Сбой повторяется: задание на паузу (его можно продолжить из карточки), автору — уведомление. */
+    private void stopAfterFailure(long jobId, Exception error) {
+        log.error("Broadcast job #{} paused after {} failed attempts", jobId, CHUNK_ATTEMPTS, error);
+        boolean paused;
+        try {
+            paused = repository.transition(jobId, Status.PAUSED, Status.RUNNING).join();
+        } catch (RuntimeException e) {
+            // Still RUNNING: picked up again on the next start
+            log.warn("pause broadcast job #{} failed: {}", jobId, e.toString());
+            return;
+        }
+        Job job = repository.find(jobId);
+        if (!paused || job == null) return;
+        sender.send(job.createdBy(), "⚠️ Рассылка #" + jobId + " приостановлена из-за ошибки:\n<code>"
+                + escapeHtml(errorText(error)) + "</code>\n\nПродолжить можно в карточке рассылки.", Priority.ADMIN_NOTIFY);
+    }
+
+    /** Пауза перед повтором; false — бот останавливается. */
+    private boolean sleep(long ms) throws InterruptedException {
+        long until = System.currentTimeMillis() + ms;
+        while (!closing) {
+            long left = until - System.currentTimeMillis();
+            if (left <= 0) return true;
+            Thread.sleep(Math.min(left, 200));
+        }
+        return false;
+    }
+
+    private void notifyDone(long jobId) {
+        Job job = repository.find(jobId);
+        if (job == null) return;
+        sender.send(job.createdBy(), "✅ Рассылка #" + job.id() + " завершена.\n\n"
+                + "Успешно: <b>" + job.sent() + "</b>\nОшибок: <b>" + job.failed() + "</b>", Priority.ADMIN_NOTIFY);
+    }
+
+    private static String errorText(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        String text = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+        return text.length() > 200 ? text.substring(0, 200) : text;
+    }
+
+    private static String escapeHtml(String s) {
+        if (s == null) return "";
+        return s.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    /** Дожидается конца текущей порции; незаконченное задание продолжится при следующем старте. */
+    @Override
+    public void close() {
+        closing = true;
+        worker.shutdown();
+        try {
+            worker.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,34 +5,398 @@ import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.ndfle.bot.db.MediaCacheRepository;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-public class MediaService {
+/**
+ * Видео из MEDIA_DIR. file_id хранятся по содержимому файла («sha256:…» в media_cache) и держатся в памяти:
+ * заменили {@code 1.mp4} — у него новый ключ и новый file_id, старый больше не отправляется.
+ * Прогрев при запуске и слежение за каталогом заливают новые версии в служебный чат в фоне,
+ * чтобы пользователю уходил готовый file_id, а не файл с диска.
+ * Пока файл загружается, остальные запросы той же версии ждут эту загрузку и уходят по её file_id.
+ * SHA-256 считается только при запуске и в фоновых потоках: отправка лишь сверяет размер и mtime файла
+ * с последним отпечатком, а расхождение (например, пропущенное событие слежения) отдаёт на перехэширование в фоне.
+ */
+public class MediaService implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(MediaService.class);
 
+    /** Файл в MEDIA_DIR; {@code cacheKey} — его имя в логах и в кеше отпечатков. */
+    public record Media(String cacheKey, String fileName) {}
+
+    public static final Media VIDEO1 = new Media("video1", "1.mp4");
+    public static final Media VIDEO2 = new Media("video2", "2.mp4");
+    private static final List<Media> ALL = List.of(VIDEO1, VIDEO2);
+    /** Сколько раз ждущий запрос переждёт неудачную чужую загрузку, прежде чем вернуть ошибку */
+    private static final int WAIT_RETRIES = 2;
+    /** Префикс ключа media_cache для адресации по содержимому */
+    private static final String KEY_PREFIX = "sha256:";
+    /** Файл, менявшийся недавно, ещё может дописываться: его не хэшируем */
+    private static final long SETTLE_MS = 2000;
+
+    /** Отправка видео; выставляется ботом (через планировщик исходящих). */
+    @FunctionalInterface
+    public interface Uploader {
+        CompletableFuture<Message> send(SendVideo video);
+    }
+
+    /** Размер и mtime — быстрая проверка, что файл не менялся; key — SHA-256 содержимого. */
+    private record Fingerprint(long size, long modifiedMs, String key) {}
+
+    /** Загрузка версии файла, занятая прогревом. */
+    private record Claim(Media media, String key, CompletableFuture<String> slot) {}
+
     private final MediaCacheRepository mediaCacheRepository;
     private final Path mediaDir;
+    /** sha256:… -> file_id */
+    private final Map<String, String> fileIds = new ConcurrentHashMap<>();
+    /** Media.cacheKey -> последний посчитанный отпечаток */
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    /** Media.cacheKey -> замок пересчёта отпечатка этого файла */
+    private final Map<String, Object> fingerprintLocks = new ConcurrentHashMap<>();
+    /** sha256:… -> file_id загрузки с диска, которая идёт сейчас */
+    private final Map<String, CompletableFuture<String>> uploads = new ConcurrentHashMap<>();
+    /** Media.cacheKey -> перехэширование, запрошенное отправкой */
+    private final Map<String, CompletableFuture<Fingerprint>> rehashes = new ConcurrentHashMap<>();
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "media-hash");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Uploader uploader;
+    /** Служебный чат для фоновых загрузок; 0 — не задан */
+    private volatile long warmupChatId;
+    private volatile WatchService watcher;
 
     public MediaService(MediaCacheRepository mediaCacheRepository, String mediaDir) {
         this.mediaCacheRepository = mediaCacheRepository;
         this.mediaDir = Path.of(mediaDir == null ? "media" : mediaDir);
+        // Rows keyed by logical name ("video1") can't be matched to content and are ignored
+        mediaCacheRepository.loadAll().forEach((key, fileId) -> {
+            if (key.startsWith(KEY_PREFIX)) fileIds.put(key, fileId);
+        });
+        for (Media media : ALL) {
+            try {
+                refresh(media);
+            } catch (IOException e) {
+                log.warn("media {} is not readable: {}", media.fileName(), e.toString());
+            }
+        }
+    }
+
+    /** Подключает отправителя; выставляется ботом после создания. */
+    public void start(Uploader uploader) {
+        this.uploader = uploader;
+    }
+
+    /**
+     * Заливает в {@code serviceChatId} по одному все видео, для текущей версии которых ещё нет file_id;
+     * тот же чат используется для фоновой загрузки изменённых файлов.
+     * Future завершается, когда прогрев закончен (ошибки только логируются).
+     */
+    public CompletableFuture<Void> prewarm(long serviceChatId) {
+        this.warmupChatId = serviceChatId;
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (Media media : ALL) {
+            // Claimed up front: a user tap during warmup waits for this upload instead of starting its own
+            Claim claim = claim(media);
+            if (claim == null) continue;
+            // One upload at a time: these are the big files, no point competing for the link
+            chain = chain.thenCompose(v -> warm(claim));
+        }
+        return chain;
+    }
+
+    /**
+     * Следит за MEDIA_DIR: изменённое видео после {@link #SETTLE_MS} тишины перехэшируется
+     * и, если задан служебный чат, заливается заново в фоне.
+     */
+    public void watch() {
+        try {
+            WatchService ws = mediaDir.getFileSystem().newWatchService();
+            mediaDir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            this.watcher = ws;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("media dir {} is not watched: {}", mediaDir, e.toString());
+            return;
+        }
+        Thread t = new Thread(this::watchLoop, "media-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void watchLoop() {
+        // Media -> time of its last event; handled once the file has been quiet for SETTLE_MS
+        Map<Media, Long> changed = new HashMap<>();
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(SETTLE_MS / 2, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (!(event.context() instanceof Path name)) continue;
+                        for (Media media : ALL) {
+                            if (media.fileName().equals(name.toString())) changed.put(media, System.currentTimeMillis());
+                        }
+                    }
+                    key.reset();
+                }
+                long now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<Media, Long>> it = changed.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Media, Long> e = it.next();
+                    if (now - e.getValue() < SETTLE_MS) continue;
+                    it.remove();
+                    Claim claim = claim(e.getKey());
+                    if (claim != null) {
+                        log.info("media {} changed, uploading the new version", e.getKey().fileName());
+                        warm(claim);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Пересчитывает отпечаток и занимает загрузку его версии в служебный чат.
+     * null — загружать нечего: чат не задан, file_id уже есть, загрузка уже идёт или файла нет.
+     */
+    private Claim claim(Media media) {
+        Fingerprint fp;
+        try {
+            fp = refresh(media);
+        } catch (IOException e) {
+            log.warn("media {} is not readable: {}", media.fileName(), e.toString());
+            return null;
+        }
+        if (warmupChatId == 0 || fileIds.containsKey(fp.key())) return null;
+        CompletableFuture<String> slot = new CompletableFuture<>();
+        if (uploads.putIfAbsent(fp.key(), slot) != null) return null;
+        return new Claim(media, fp.key(), slot);
+    }
+
+    private CompletableFuture<Void> warm(Claim claim) {
+        long started = System.currentTimeMillis();
+        String fileName = claim.media().fileName();
+        return upload(warmupChatId, claim.media(), claim.key(), null, null, claim.slot()).handle((sent, e) -> {
+            if (e != null) log.warn("media warmup: upload {} failed: {}", fileName, e.toString());
+            else log.info("media warmup: {} uploaded in {} ms", fileName, System.currentTimeMillis() - started);
+            return null;
+        });
+    }
+
+    /**
+     * Отправляет видео: по file_id последней известной версии файла, если он есть; иначе первый запрос грузит
+     * файл с диска, а одновременные запросы ждут его и отправляют по полученному file_id.
+     * file_id, отвергнутый Telegram, заменяется одной повторной загрузкой.
+     * Если размер или mtime файла разошлись с последним отпечатком, запрос ждёт перехэширования в фоне;
+     * файл, который так и не удалось хэшировать (не прочитан или ещё дописывается), грузится с диска без кеша.
+     */
+    public CompletableFuture<Message> send(long chatId, Media media, String captionHtml, InlineKeyboardMarkup markup) {
+        Fingerprint fp = fingerprints.get(media.cacheKey());
+        if (fp != null && isCurrent(media, fp.key())) {
+            return send(chatId, media, fp.key(), captionHtml, markup, WAIT_RETRIES, true);
+        }
+        // The watcher missed the change (or isn't running): the old file_id must not go out
+        return rehash(media).handle((n, e) -> n != null && isCurrent(media, n.key())
+                ? send(chatId, media, n.key(), captionHtml, markup, WAIT_RETRIES, true)
+                : sendFromDisk(chatId, media, captionHtml, markup)).thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Message> sendFromDisk(long chatId, Media media, String captionHtml,
+                                                    InlineKeyboardMarkup markup) {
+        try {
+            return uploader.send(video(chatId, new InputFile(path(media).toFile()), captionHtml, markup));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Перехэширует файл в фоновом потоке и, если задан служебный чат, занимает загрузку новой версии,
+     * чтобы ждущие отправки ушли по её file_id. Одновременные запросы одного файла ждут одно перехэширование.
+     */
+    private CompletableFuture<Fingerprint> rehash(Media media) {
+        CompletableFuture<Fingerprint> slot = new CompletableFuture<>();
+        CompletableFuture<Fingerprint> running = rehashes.putIfAbsent(media.cacheKey(), slot);
+        if (running != null) return running;
+        try {
+            hasher.execute(() -> {
+                try {
+                    Fingerprint fp = refresh(media);
+                    Claim claim = claim(media);
+                    if (claim != null) {
+                        log.info("media {} changed on disk, uploading the new version", media.fileName());
+                        warm(claim);
+                    }
+                    rehashes.remove(media.cacheKey(), slot);
+                    slot.complete(fp);
+                } catch (IOException | RuntimeException e) {
+                    rehashes.remove(media.cacheKey(), slot);
+                    slot.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rehashes.remove(media.cacheKey(), slot);
+            slot.completeExceptionally(e);
+        }
+        return slot;
+    }
+
+    private CompletableFuture<Message> send(long chatId, Media media, String key, String captionHtml,
+                                            InlineKeyboardMarkup markup, int retries, boolean mayReupload) {
+        String cached = fileIds.get(key);
+        if (cached != null) {
+            CompletableFuture<Message> sent = uploader.send(video(chatId, new InputFile(cached), captionHtml, markup));
+            if (!mayReupload) return sent;
+            return sent.handle((m, e) -> {
+                if (e == null) return CompletableFuture.completedFuture(m);
+                if (!isStaleFileId(e)) return CompletableFuture.<Message>failedFuture(e);
+                log.warn("file_id of {} rejected, uploading again: {}", media.fileName(), e.toString());
+                fileIds.remove(key, cached);
+                return send(chatId, media, key, captionHtml, markup, retries, false);
+            }).thenCompose(f -> f);
+        }
+
+        CompletableFuture<String> slot = new CompletableFuture<>();
+        CompletableFuture<String> running = uploads.putIfAbsent(key, slot);
+        if (running != null) {
+            // If that upload fails, one of the waiters takes over and the rest wait for it again
+            return running.handle((id, e) -> {
+                if (id != null) return uploader.send(video(chatId, new InputFile(id), captionHtml, markup));
+                if (retries > 0) return send(chatId, media, key, captionHtml, markup, retries - 1, false);
+                return CompletableFuture.<Message>failedFuture(e);
+            }).thenCompose(f -> f);
+        }
+
+        // The previous upload may have finished between the lookup and the claim
+        String done = fileIds.get(key);
+        if (done != null) {
+            uploads.remove(key, slot);
+            slot.complete(done);
+            return uploader.send(video(chatId, new InputFile(done), captionHtml, markup));
+        }
+        return upload(chatId, media, key, captionHtml, markup, slot);
+    }
+
+    /** Грузит файл с диска и отдаёт file_id ждущим в {@code slot}. */
+    private CompletableFuture<Message> upload(long chatId, Media media, String key, String captionHtml,
+                                              InlineKeyboardMarkup markup, CompletableFuture<String> slot) {
+        CompletableFuture<Message> sent;
+        try {
+            sent = uploader.send(video(chatId, new InputFile(path(media).toFile()), captionHtml, markup));
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        return sent.whenComplete((m, e) -> {
+            String fileId = e == null ? fileIdOf(m) : null;
+            // Remembered under the key only if the file didn't change while it was being uploaded
+            if (fileId != null && isCurrent(media, key)) put(key, m.getVideo() != null ? "video" : "document", fileId);
+            uploads.remove(key, slot);
+            if (fileId != null) slot.complete(fileId);
+            else slot.completeExceptionally(e != null ? e : new IllegalStateException("no file_id in response"));
+        });
+    }
+
+    /**
+     * Пересчитывает отпечаток файла (только при запуске и из фоновых потоков). SHA-256 считается, только если
+     * размер или mtime изменились; файл, менявшийся меньше {@link #SETTLE_MS} назад, или пропавший файл —
+     * прежний отпечаток, если он есть.
+     */
+    private Fingerprint refresh(Media media) throws IOException {
+        synchronized (fingerprintLocks.computeIfAbsent(media.cacheKey(), k -> new Object())) {
+            Path path = path(media);
+            Fingerprint known = fingerprints.get(media.cacheKey());
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                if (known != null) return known;
+                throw e;
+            }
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (known != null && known.size() == size && known.modifiedMs() == modified) return known;
+            if (known != null && System.currentTimeMillis() - modified < SETTLE_MS) return known;
+
+            Fingerprint fp = new Fingerprint(size, modified, KEY_PREFIX + sha256(path));
+            fingerprints.put(media.cacheKey(), fp);
+            return fp;
+        }
+    }
+
+    /** {@code key} — последний известный отпечаток, и размер с mtime файла с тех пор не менялись (без хэширования). */
+    private boolean isCurrent(Media media, String key) {
+        Fingerprint fp = fingerprints.get(media.cacheKey());
+        if (fp == null || !fp.key().equals(key)) return false;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path(media), BasicFileAttributes.class);
+            return attrs.size() == fp.size() && attrs.lastModifiedTime().toMillis() == fp.modifiedMs();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String sha256(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
     }
 
-    public SendVideo buildVideo(long chatId, String cacheKey, String filename, String captionHtml, InlineKeyboardMarkup markup) {
-        String cached = mediaCacheRepository.getFileId(cacheKey);
-        InputFile input;
-        if (cached != null && !cached.isBlank()) {
-            input = new InputFile(cached);
-        } else {
-            File f = mediaDir.resolve(filename).toFile();
-            input = new InputFile(f);
+    /** 400 от Telegram про сам file_id: файл удалён на стороне Telegram или id от другого бота. */
+    static boolean isStaleFileId(Throwable error) {
+        Throwable t = error;
+        while (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        if (!(t instanceof TelegramApiRequestException re) || re.getErrorCode() == null || re.getErrorCode() != 400) {
+            return false;
         }
+        String description = re.getApiResponse() == null ? "" : re.getApiResponse().toLowerCase(Locale.ROOT);
+        return description.contains("file identifier") || description.contains("file_id")
+                || description.contains("file reference");
+    }
 
+    private Path path(Media media) {
+        return mediaDir.resolve(media.fileName());
+    }
+
+    private static SendVideo video(long chatId, InputFile input, String captionHtml, InlineKeyboardMarkup markup) {
         SendVideo sv = new SendVideo();
         sv.setChatId(String.valueOf(chatId));
         sv.setVideo(input);
@@ -47,16 +411,26 @@ public class MediaService {
         return sv;
     }
 
-    public void updateCacheFromSentMessage(String cacheKey, Message sent) {
+    private static String fileIdOf(Message sent) {
+        if (sent == null) return null;
+        if (sent.getVideo() != null) return sent.getVideo().getFileId();
+        if (sent.getDocument() != null) return sent.getDocument().getFileId();
+        return null;
+    }
+
+    private void put(String key, String type, String fileId) {
+        if (!fileId.equals(fileIds.put(key, fileId))) mediaCacheRepository.putFileId(key, type, fileId);
+    }
+
+    @Override
+    public void close() {
+        hasher.shutdownNow();
+        WatchService ws = watcher;
+        if (ws == null) return;
         try {
-            if (sent == null) return;
-            if (sent.getVideo() != null && sent.getVideo().getFileId() != null) {
-                mediaCacheRepository.putFileId(cacheKey, "video", sent.getVideo().getFileId());
-            } else if (sent.getDocument() != null && sent.getDocument().getFileId() != null) {
-                mediaCacheRepository.putFileId(cacheKey, "document", sent.getDocument().getFileId());
-            }
-        } catch (Exception e) {
-            log.warn("updateCacheFromSentMessage failed: {}", e.toString());
+            ws.close();
+        } catch (IOException e) {
+            log.warn("close media watcher failed: {}", e.toString());
         }
     }
 }
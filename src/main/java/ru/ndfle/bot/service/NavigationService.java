@@ -43,9 +43,7 @@ public class NavigationService {
 
     public SendMessage goTo(long chatId, UserContext ctx, String nodeId) {
         if (!menuTree.exists(nodeId)) nodeId = "start";
-        if (ctx.currentNode != null && !ctx.currentNode.equals(nodeId)) {
-            ctx.backStack.push(ctx.currentNode);
-        }
+        pushBack(ctx, nodeId);
         ctx.currentNode = nodeId;
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
@@ -54,9 +52,7 @@ public class NavigationService {
 
     public EditMessageText goToEdit(long chatId, int messageId, UserContext ctx, String nodeId) {
         if (!menuTree.exists(nodeId)) nodeId = "start";
-        if (ctx.currentNode != null && !ctx.currentNode.equals(nodeId)) {
-            ctx.backStack.push(ctx.currentNode);
-        }
+        pushBack(ctx, nodeId);
         ctx.currentNode = nodeId;
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
@@ -65,7 +61,7 @@ public class NavigationService {
 
     public SendMessage back(long chatId, UserContext ctx) {
         if (ctx.backStack.isEmpty()) return toMenu(chatId, ctx);
-        String prev = ctx.backStack.pop();
+        String prev = menuTree.idAt(ctx.backStack.pop());
         ctx.currentNode = prev;
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
@@ -79,13 +75,24 @@ public class NavigationService {
             contextRepository.save(ctx);
             return renderEdit(chatId, messageId, menuTree.get("start"));
         }
-        String prev = ctx.backStack.pop();
+        String prev = menuTree.idAt(ctx.backStack.pop());
         ctx.currentNode = prev;
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
         return renderEdit(chatId, messageId, menuTree.get(prev));
     }
 
+    /**
+     * Запоминает текущий экран перед переходом на {@code nodeId}. Если {@code nodeId} уже есть в стеке,
+     * цикл схлопывается: стек обрезается до него, и «назад» ведёт туда же, откуда пришли в первый раз.
+     */
+    private void pushBack(UserContext ctx, String nodeId) {
+        if (ctx.currentNode == null || ctx.currentNode.equals(nodeId)) return;
+        if (ctx.backStack.trimTo(menuTree.indexOf(nodeId))) return;
+        int current = menuTree.indexOf(ctx.currentNode);
+        if (current >= 0) ctx.backStack.push(current);
+    }
+
     private SendMessage renderSend(long chatId, MenuNode node) {
         return SendMessage.builder()
                 .chatId(chatId)
@@ -0,0 +1,252 @@
+package ru.ndfle.bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Уведомления админам. В режиме DIGEST события копятся по админу и уходят одной сводкой
+ * через {@code interval} после первого события или по набору {@code maxEvents} — что раньше.
+ * Сводка режется на сообщения короче 4096 символов, слишком длинное событие обрезается;
+ * срочные события идут сразу.
+ */
+public class NotificationService implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(NotificationService.class);
+
+    /** Лимит Telegram на текст сообщения */
+    static final int MAX_TEXT = 4096;
+    private static final String CUT_MARK = "\n…";
+    /** Кнопок в одной сводке не больше этого числа строк клавиатуры */
+    private static final int MAX_BUTTON_ROWS = 50;
+    private static final String SEPARATOR = "\n\n➖➖➖\n\n";
+
+    public enum Mode { IMMEDIATE, DIGEST }
+
+    @FunctionalInterface
+    public interface Sender {
+        void send(long chatId, String html, InlineKeyboardMarkup markup);
+    }
+
+    public record Stats(Mode mode, long events, long immediate, long digests, long digestMessages, int buffered) {}
+
+    private record Event(String html, List<List<InlineKeyboardButton>> rows) {}
+
+    private static final class Buffer {
+        final List<Event> events = new ArrayList<>();
+        ScheduledFuture<?> timer;
+    }
+
+    private final Mode mode;
+    private final long intervalMs;
+    private final int maxEvents;
+    private final ScheduledExecutorService timer;
+    /** adminId -> накопленные события; guarded by this */
+    private final Map<Long, Buffer> buffers = new HashMap<>();
+    private volatile Sender sender;
+    /** После close события идут сразу: таймера сводок уже нет; guarded by this */
+    private boolean closed;
+
+    // Metrics
+    private final LongAdder events = new LongAdder();
+    private final LongAdder immediate = new LongAdder();
+    private final LongAdder digests = new LongAdder();
+    private final LongAdder digestMessages = new LongAdder();
+
+    public NotificationService(Mode mode, long intervalMs, int maxEvents) {
+        this.mode = mode;
+        this.intervalMs = Math.max(1, intervalMs);
+        this.maxEvents = Math.max(1, maxEvents);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "notify-digest");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Подключает отправителя; выставляется ботом после создания. */
+    public void start(Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @param markup кнопки события; в сводке они складываются строками под текстом
+     * @param urgent отправить сразу, мимо сводки
+     */
+    public void notify(long adminId, String html, InlineKeyboardMarkup markup, boolean urgent) {
+        events.increment();
+        List<List<InlineKeyboardButton>> rows = markup == null ? List.of() : markup.getKeyboard();
+        Buffer full = null;
+        boolean direct = mode == Mode.IMMEDIATE || urgent;
+        if (!direct) {
+            synchronized (this) {
+                if (closed) {
+                    direct = true;
+                } else {
+                    Buffer b = buffers.computeIfAbsent(adminId, id -> new Buffer());
+                    b.events.add(new Event(html, rows));
+                    if (b.events.size() >= maxEvents) {
+                        if (b.timer != null) b.timer.cancel(false);
+                        buffers.remove(adminId);
+                        full = b;
+                    } else if (b.timer == null) {
+                        b.timer = timer.schedule(() -> flush(adminId, b), intervalMs, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+        if (direct) {
+            immediate.increment();
+            send(adminId, html, markup);
+        } else if (full != null) {
+            sendDigest(adminId, full.events);
+        }
+    }
+
+    private void flush(long adminId, Buffer b) {
+        synchronized (this) {
+            if (!buffers.remove(adminId, b)) return;
+        }
+        sendDigest(adminId, b.events);
+    }
+
+    private void sendDigest(long adminId, List<Event> batch) {
+        if (batch.size() == 1) {
+            Event e = batch.get(0);
+            send(adminId, e.html(), markup(e.rows()));
+            return;
+        }
+        digests.increment();
+
+        String header = "🔔 <b>Сводка: " + batch.size() + " событий</b>\n\n";
+        StringBuilder text = new StringBuilder(header);
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        int inChunk = 0;
+        for (Event e : batch) {
+            if (header.length() + e.html().length() > MAX_TEXT) {
+                // Doesn't fit even alone under the header: goes out as its own (truncated) message
+                send(adminId, e.html(), markup(e.rows()));
+                continue;
+            }
+            int extra = (inChunk == 0 ? 0 : SEPARATOR.length()) + e.html().length();
+            boolean overflow = text.length() + extra > MAX_TEXT || rows.size() + e.rows().size() > MAX_BUTTON_ROWS;
+            if (overflow && inChunk > 0) {
+                emit(adminId, text.toString(), rows);
+                text = new StringBuilder(header);
+                rows = new ArrayList<>();
+                inChunk = 0;
+            }
+            if (inChunk > 0) text.append(SEPARATOR);
+            text.append(e.html());
+            rows.addAll(e.rows());
+            inChunk++;
+        }
+        if (inChunk > 0) emit(adminId, text.toString(), rows);
+    }
+
+    private void emit(long adminId, String html, List<List<InlineKeyboardButton>> rows) {
+        digestMessages.increment();
+        send(adminId, html, markup(rows));
+    }
+
+    private void send(long adminId, String html, InlineKeyboardMarkup markup) {
+        Sender s = sender;
+        if (s == null) {
+            log.warn("notification service not started, dropping message for {}", adminId);
+            return;
+        }
+        try {
+            s.send(adminId, truncateHtml(html, MAX_TEXT), markup);
+        } catch (RuntimeException e) {
+            log.warn("notify {} failed: {}", adminId, e.toString());
+        }
+    }
+
+    /**
+     * HTML не длиннее {@code max}: лишнее отрезается по границе тега/сущности, ставится «…»
+     * и закрываются открытые теги. Текст короче лимита возвращается как есть.
+     */
+    static String truncateHtml(String html, int max) {
+        if (html.length() <= max) return html;
+        Deque<String> open = new ArrayDeque<>();
+        int closing = 0;
+        int i = 0;
+        while (i < html.length()) {
+            char ch = html.charAt(i);
+            int end = i + 1;
+            String pushed = null;
+            boolean pops = false;
+            if (ch == '<') {
+                int gt = html.indexOf('>', i);
+                if (gt < 0) break;
+                end = gt + 1;
+                boolean close = i + 1 < gt && html.charAt(i + 1) == '/';
+                String name = tagName(html, close ? i + 2 : i + 1, gt);
+                if (close) pops = !open.isEmpty() && open.peek().equals(name);
+                else pushed = name;
+            } else if (ch == '&') {
+                int semi = html.indexOf(';', i);
+                if (semi > 0 && semi - i <= 10) end = semi + 1;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < html.length()) {
+                end = i + 2;
+            }
+            int closingAfter = closing
+                    + (pushed != null ? pushed.length() + 3 : 0)
+                    - (pops ? open.peek().length() + 3 : 0);
+            if (end + CUT_MARK.length() + closingAfter > max) break;
+            if (pushed != null) open.push(pushed);
+            if (pops) open.pop();
+            closing = closingAfter;
+            i = end;
+        }
+        StringBuilder sb = new StringBuilder(max).append(html, 0, i).append(CUT_MARK);
+        for (String tag : open) sb.append("</").append(tag).append('>');
+        return sb.toString();
+    }
+
+    private static String tagName(String html, int from, int to) {
+        int end = from;
+        while (end < to && !Character.isWhitespace(html.charAt(end)) && html.charAt(end) != '/') end++;
+        return html.substring(from, end);
+    }
+
+    private static InlineKeyboardMarkup markup(List<List<InlineKeyboardButton>> rows) {
+        if (rows.isEmpty()) return null;
+        InlineKeyboardMarkup m = new InlineKeyboardMarkup();
+        m.setKeyboard(new ArrayList<>(rows));
+        return m;
+    }
+
+    public Stats stats() {
+        int buffered = 0;
+        synchronized (this) {
+            for (Buffer b : buffers.values()) buffered += b.events.size();
+        }
+        return new Stats(mode, events.sum(), immediate.sum(), digests.sum(), digestMessages.sum(), buffered);
+    }
+
+    /** Отправляет все накопленные сводки (вызывать до закрытия планировщика исходящих). */
+    @Override
+    public void close() {
+        Map<Long, Buffer> rest;
+        synchronized (this) {
+            closed = true;
+            rest = new HashMap<>(buffers);
+            buffers.clear();
+        }
+        timer.shutdownNow();
+        rest.forEach((adminId, b) -> sendDigest(adminId, b.events));
+    }
+}
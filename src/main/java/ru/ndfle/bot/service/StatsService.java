@@ -0,0 +1,129 @@
+package ru.ndfle.bot.service;
+
+import ru.ndfle.bot.db.ContextRepository;
+import ru.ndfle.bot.db.Database;
+import ru.ndfle.bot.db.UserRepository;
+import ru.ndfle.bot.outbound.OutboundScheduler;
+import ru.ndfle.bot.update.UpdateDispatcher;
+import ru.ndfle.bot.update.WebhookServer;
+
+/**
+ * Внутренние счётчики бота для админ-панели (кнопка «Статистика» / A:STATS).
+ */
+public class StatsService {
+    private final Database db;
+    private final UserRepository userRepository;
+    private final ContextRepository contextRepository;
+    private final UpdateDispatcher updateDispatcher;
+    private final OutboundScheduler outbound;
+    private final NotificationService notifications;
+    /** Только в режиме webhook; выставляется после запуска сервера */
+    private volatile WebhookServer webhook;
+
+    public StatsService(Database db,
+                        UserRepository userRepository,
+                        ContextRepository contextRepository,
+                        UpdateDispatcher updateDispatcher,
+                        OutboundScheduler outbound,
+                        NotificationService notifications) {
+        this.db = db;
+        this.userRepository = userRepository;
+        this.contextRepository = contextRepository;
+        this.updateDispatcher = updateDispatcher;
+        this.outbound = outbound;
+        this.notifications = notifications;
+    }
+
+    public void setWebhook(WebhookServer webhook) {
+        this.webhook = webhook;
+    }
+
+    public String renderHtml() {
+        var pool = db.poolStats();
+        var writer = db.writerStats();
+        var users = userRepository.stats();
+        var contexts = contextRepository.cacheStats();
+        var saves = contextRepository.saveStats();
+        var updates = updateDispatcher.stats();
+        var sends = outbound.stats();
+        var notify = notifications.stats();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("📊 <b>Статистика</b>\n\n");
+        sb.append("⚙️ <b>Обработка апдейтов</b>\n")
+                .append("• режим: ").append(updates.mode())
+                .append(", воркеров: ").append(updates.workers()).append("\n")
+                .append("• в работе: ").append(updates.inFlight())
+                .append(", обработано: ").append(updates.processed())
+                .append(", ошибок: ").append(updates.failed()).append("\n\n");
+        WebhookServer server = webhook;
+        if (server != null) {
+            var hook = server.stats();
+            sb.append("🌐 <b>Webhook</b>\n")
+                    .append("• принято: ").append(hook.accepted())
+                    .append(", отклонено: ").append(hook.rejected())
+                    .append(", сбоев: ").append(hook.errors()).append("\n")
+                    .append("• 401: ").append(hook.unauthorized())
+                    .append(", 405: ").append(hook.badMethod())
+                    .append(", 413: ").append(hook.tooLarge())
+                    .append(", 400: ").append(hook.malformed()).append("\n\n");
+        }
+        sb.append("📤 <b>Отправка в Telegram</b>\n")
+                .append("• в очереди: ").append(sends.queued())
+                .append(" (макс. ").append(sends.maxQueued()).append("), чатов: ").append(sends.chats())
+                .append(", повторов после 429: ").append(sends.retried()).append("\n");
+        for (var lane : sends.lanes()) {
+            sb.append("• ").append(lane.priority()).append(": ")
+                    .append("ждут ").append(lane.queued())
+                    .append(", отправлено ").append(lane.sent())
+                    .append(", ошибок ").append(lane.failed())
+                    .append(", ожидание ср. ").append(lane.avgWaitMs()).append(" мс")
+                    .append(" / макс. ").append(lane.maxWaitMs()).append(" мс\n");
+        }
+        sb.append("\n");
+        sb.append("🔔 <b>Уведомления админам</b>\n")
+                .append("• режим: ").append(notify.mode())
+                .append(", событий: ").append(notify.events())
+                .append(", сразу: ").append(notify.immediate()).append("\n")
+                .append("• сводок: ").append(notify.digests())
+                .append(" (сообщений ").append(notify.digestMessages()).append(")")
+                .append(", ждут: ").append(notify.buffered()).append("\n\n");
+        sb.append("🗄 <b>SQLite пул</b>\n")
+                .append("• соединений: ").append(pool.size())
+                .append(", занято: ").append(pool.inUse()).append("\n")
+                .append("• выдач: ").append(pool.acquisitions())
+                .append(", ожиданий: ").append(pool.waits()).append("\n")
+                .append("• ожидание всего: ").append(pool.totalWaitMs()).append(" мс")
+                .append(", макс: ").append(pool.maxWaitMs()).append(" мс\n")
+                .append("• statement-кеш: попаданий ").append(pool.statementHits())
+                .append(", промахов ").append(pool.statementMisses())
+                .append(", вытеснений ").append(pool.statementEvictions()).append("\n");
+        sb.append("\n✍️ <b>Писатель SQLite</b>\n")
+                .append("• в очереди: ").append(writer.queued()).append("\n")
+                .append("• записей: ").append(writer.commands())
+                .append(", транзакций: ").append(writer.batches())
+                .append(", макс. пачка: ").append(writer.maxBatch()).append("\n")
+                .append("• ошибок: ").append(writer.failed()).append("\n");
+        sb.append("\n👤 <b>Профили (write-behind)</b>\n")
+                .append("• upsert: ").append(users.upserts())
+                .append(", пропущено: ").append(users.skipped()).append("\n")
+                .append("• записано строк: ").append(users.flushedRows())
+                .append(" за ").append(users.flushes()).append(" сбросов")
+                .append(", ждут: ").append(users.dirty()).append("\n")
+                .append("• недоступных чатов: ").append(users.blocked())
+                .append(" (новых с запуска: ").append(users.markedUnreachable()).append(")\n");
+        sb.append("\n🧠 <b>Кеш контекстов</b>\n")
+                .append("• размер: ").append(contexts.size()).append(" / ").append(contexts.maxSize()).append("\n")
+                .append("• попаданий: ").append(String.format("%.1f", contexts.hitRate() * 100)).append("%")
+                .append(" (").append(contexts.hits()).append(" / ").append(contexts.hits() + contexts.misses()).append(")\n")
+                .append("• вытеснений: ").append(contexts.evictions()).append("\n");
+        sb.append("\n💾 <b>Сохранения контекста</b>\n")
+                .append("• апдейтов: ").append(saves.updates())
+                .append(", вызовов save: ").append(saves.saveCalls()).append("\n")
+                .append("• записей строк: ").append(saves.rowWrites())
+                .append(" (").append(String.format("%.2f", saves.writesPerUpdate())).append(" на апдейт)")
+                .append(", без изменений: ").append(saves.skipped()).append("\n")
+                .append("• колонок записано: ").append(saves.columnWrites()).append("\n");
+        return sb.toString();
+    }
+}
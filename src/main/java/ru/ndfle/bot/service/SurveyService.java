@@ -7,7 +7,6 @@ import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageTe
 import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import ru.ndfle.bot.db.AdminRepository;
 import ru.ndfle.bot.db.BkRequestRepository;
 import ru.ndfle.bot.db.ContextRepository;
 import ru.ndfle.bot.model.ConversationState;
@@ -16,27 +15,39 @@ import ru.ndfle.bot.util.Json;
 
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class SurveyService {
 
-    public record SurveyResult(BotApiMethod<?> toUser, String adminHtml, Set<Long> adminIds) {}
+    /**
+     * {@code request} — только когда опрос завершён: заявка после коммита, null — сохранить её не удалось.
+     */
+    public record SurveyResult(BotApiMethod<?> toUser, CompletableFuture<BkRequest> request) {
+
+        SurveyResult(BotApiMethod<?> toUser) {
+            this(toUser, null);
+        }
+    }
+
+    /** Сохранённая заявка; {@code urgent} — клиенту надо «в течение 3х дней», уведомление идёт мимо сводки. */
+    public record BkRequest(long id, String adminHtml, boolean urgent) {}
 
     private record Option(String key, String label) {}
     private record Question(String key, String text, List<Option> options, boolean needsText) {}
 
+    /** Самый короткий срок в вопросе «urgency»: такие заявки админ видит сразу */
+    private static final String URGENT_LABEL = "В течение 3х дней";
+
     private final List<Question> bkQuestions;
     private final ContextRepository contextRepository;
     private final BkRequestRepository bkRequestRepository;
-    private final AdminRepository adminRepository;
     private final NavigationService navigationService;
 
     public SurveyService(ContextRepository contextRepository,
                          BkRequestRepository bkRequestRepository,
-                         AdminRepository adminRepository,
                          NavigationService navigationService) {
         this.contextRepository = contextRepository;
         this.bkRequestRepository = bkRequestRepository;
-        this.adminRepository = adminRepository;
         this.navigationService = navigationService;
 
         this.bkQuestions = List.of(
@@ -51,7 +62,7 @@ public class SurveyService {
                 ),
                 new Question("urgency", "⏱️ <b>Как срочно надо? (выберите сроки)</b>",
                         List.of(
-                                new Option("0", "В течение 3х дней"),
+                                new Option("0", URGENT_LABEL),
                                 new Option("1", "В течение недели"),
                                 new Option("2", "В течение 2х недель"),
                                 new Option("3", "В течение месяца")
@@ -87,13 +98,23 @@ public class SurveyService {
         );
     }
 
+    /** Ключи вопросов БК — для словаря {@code ContextCodec}. */
+    public List<String> answerKeys() {
+        return bkQuestions.stream().map(Question::key).toList();
+    }
+
+    /** Тексты всех вариантов ответов БК — для словаря {@code ContextCodec}. */
+    public List<String> optionLabels() {
+        return bkQuestions.stream().flatMap(q -> q.options().stream()).map(Option::label).distinct().toList();
+    }
+
     public SurveyResult startBk(long chatId, UserContext ctx, Integer editMessageIdOrNull) {
         ctx.bkStep = 1;
         ctx.bkAnswers.clear();
         ctx.state = ConversationState.NONE;
         contextRepository.save(ctx);
 
-        return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, 1), null, null);
+        return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, 1));
     }
 
     public SurveyResult answerBk(long chatId, UserContext ctx, Integer editMessageIdOrNull, int step, String optionKey) {
@@ -101,13 +122,13 @@ public class SurveyService {
             return startBk(chatId, ctx, editMessageIdOrNull);
         }
         if (step != ctx.bkStep) {
-            return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep), null, null);
+            return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep));
         }
 
         Question q = bkQuestions.get(step - 1);
         Option chosen = q.options.stream().filter(o -> o.key.equals(optionKey)).findFirst().orElse(null);
         if (chosen == null) {
-            return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep), null, null);
+            return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep));
         }
 
         ctx.bkAnswers.put(q.key, chosen.label);
@@ -117,18 +138,18 @@ public class SurveyService {
             // finished (should not happen, last questions are text)
             ctx.bkStep = 0;
             contextRepository.save(ctx);
-            return new SurveyResult(navigationService.goTo(chatId, ctx, "bk_after_survey"), null, null);
+            return new SurveyResult(navigationService.goTo(chatId, ctx, "bk_after_survey"));
         }
 
         Question next = bkQuestions.get(ctx.bkStep - 1);
         if (next.needsText) {
             ctx.state = stateForTextQuestion(next.key);
             contextRepository.save(ctx);
-            return new SurveyResult(askText(chatId, next.text), null, null);
+            return new SurveyResult(askText(chatId, next.text));
         }
 
         contextRepository.save(ctx);
-        return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep), null, null);
+        return new SurveyResult(renderQuestion(chatId, editMessageIdOrNull, ctx.bkStep));
     }
 
     /**
@@ -149,7 +170,7 @@ public class SurveyService {
             ctx.state = stateForTextQuestion(next.key);
             contextRepository.save(ctx);
 
-            return new SurveyResult(askText(chatId, next.text), null, null);
+            return new SurveyResult(askText(chatId, next.text));
         }
 
         if (ctx.bkStep == 7 && ctx.state == ConversationState.BK_WAIT_REAL_ESTATE_TEXT) {
@@ -165,9 +186,11 @@ public class SurveyService {
             payload.put("lastName", user.getLastName());
             payload.put("answers", new LinkedHashMap<>(ctx.bkAnswers));
 
-            long requestId = bkRequestRepository.insert(user.getId(), Json.toJson(payload));
-
-            String adminHtml = buildAdminMessage(requestId, user, ctx.bkAnswers);
+            // The admin message needs the committed id; the user's reply doesn't wait for it
+            Map<String, String> answers = new LinkedHashMap<>(ctx.bkAnswers);
+            boolean urgent = URGENT_LABEL.equals(answers.get("urgency"));
+            CompletableFuture<BkRequest> request = bkRequestRepository.insert(user.getId(), Json.toJson(payload))
+                    .thenApply(id -> id < 0 ? null : new BkRequest(id, buildAdminMessage(id, user, answers), urgent));
 
             // Reset survey state
             contextRepository.resetBk(ctx);
@@ -175,11 +198,11 @@ public class SurveyService {
             // Navigate user to after-survey node
             BotApiMethod<?> toUser = navigationService.goTo(chatId, ctx, "bk_after_survey");
 
-            return new SurveyResult(toUser, adminHtml, adminRepository.listAdminIds());
+            return new SurveyResult(toUser, request);
         }
 
         // Out of sync -> go to BK main
-        return new SurveyResult(navigationService.goTo(chatId, ctx, "bk_main"), null, null);
+        return new SurveyResult(navigationService.goTo(chatId, ctx, "bk_main"));
     }
 
     private BotApiMethod<?> renderQuestion(long chatId, Integer editMessageIdOrNull, int step) {
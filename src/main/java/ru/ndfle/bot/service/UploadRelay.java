@@ -0,0 +1,136 @@
+package ru.ndfle.bot.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Собирает файлы клиента в «пачку»: альбом (media_group_id) приходит отдельными апдейтами,
+ * да и документы обычно шлют подряд. Пачка записывается одной транзакцией, когда пользователь молчит
+ * {@code idleMs}, но не позже {@code maxHoldMs} от первого файла и не больше 100 сообщений
+ * (лимит forwardMessages/copyMessages).
+ */
+public class UploadRelay implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UploadRelay.class);
+
+    /** Bot API: forwardMessages/copyMessages принимают до 100 message_id */
+    public static final int MAX_MESSAGES = 100;
+
+    /** Сообщения одного пользователя, пришедшие подряд, по возрастанию id. */
+    public record Burst(long chatId, User from, List<Message> messages, int mediaGroups) {
+        public List<Integer> messageIds() {
+            List<Integer> ids = new ArrayList<>(messages.size());
+            for (Message m : messages) ids.add(m.getMessageId());
+            return ids;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        void relay(Burst burst);
+    }
+
+    private static final class Pending {
+        final long firstAt = System.currentTimeMillis();
+        final List<Message> messages = new ArrayList<>();
+        final Set<String> mediaGroups = new HashSet<>();
+        User from;
+        ScheduledFuture<?> timer;
+
+        Burst toBurst(long chatId) {
+            List<Message> sorted = new ArrayList<>(messages);
+            sorted.sort(Comparator.comparing(Message::getMessageId));
+            return new Burst(chatId, from, sorted, mediaGroups.size());
+        }
+    }
+
+    private final long idleMs;
+    private final long maxHoldMs;
+    private volatile Sink sink;
+    private final ScheduledExecutorService timer;
+    /** chatId -> незакрытая пачка; guarded by this */
+    private final Map<Long, Pending> pending = new HashMap<>();
+
+    public UploadRelay(long idleMs, long maxHoldMs) {
+        this.idleMs = Math.max(1, idleMs);
+        this.maxHoldMs = Math.max(this.idleMs, maxHoldMs);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-relay");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Подключает получателя пачек; выставляется ботом после создания. */
+    public void start(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Добавляет сообщение с файлом в пачку пользователя и переносит её отправку. */
+    public void accept(long chatId, User from, Message message) {
+        Burst full = null;
+        synchronized (this) {
+            Pending p = pending.computeIfAbsent(chatId, id -> new Pending());
+            p.from = from;
+            p.messages.add(message);
+            if (message.getMediaGroupId() != null) p.mediaGroups.add(message.getMediaGroupId());
+            if (p.timer != null) p.timer.cancel(false);
+
+            if (p.messages.size() >= MAX_MESSAGES) {
+                pending.remove(chatId);
+                full = p.toBurst(chatId);
+            } else {
+                long untilMaxHold = p.firstAt + maxHoldMs - System.currentTimeMillis();
+                long delay = Math.max(0, Math.min(idleMs, untilMaxHold));
+                p.timer = timer.schedule(() -> flush(chatId, p), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) deliver(full);
+    }
+
+    private void flush(long chatId, Pending p) {
+        synchronized (this) {
+            // Already taken by a full batch or by an earlier timer
+            if (!pending.remove(chatId, p)) return;
+        }
+        deliver(p.toBurst(chatId));
+    }
+
+    private void deliver(Burst burst) {
+        Sink sink = this.sink;
+        if (sink == null) {
+            log.warn("upload relay not started, dropping {} messages from chat {}", burst.messageIds().size(), burst.chatId());
+            return;
+        }
+        try {
+            sink.relay(burst);
+        } catch (RuntimeException e) {
+            log.warn("upload relay for chat {} failed: {}", burst.chatId(), e.toString());
+        }
+    }
+
+    /** Отдаёт все незакрытые пачки сразу (вызывать до закрытия планировщика исходящих). */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        List<Burst> rest = new ArrayList<>();
+        synchronized (this) {
+            for (var e : pending.entrySet()) rest.add(e.getValue().toBurst(e.getKey()));
+            pending.clear();
+        }
+        rest.forEach(this::deliver);
+    }
+}
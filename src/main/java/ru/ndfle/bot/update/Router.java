@@ -0,0 +1,157 @@
+package ru.ndfle.bot.update;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Таблица маршрутов для callback data и /команд: точные ключи — в хеш-таблице,
+ * префиксы ({@code N:}, {@code BK:}, {@code A:} ...) — в префиксном дереве.
+ * Стоимость маршрутизации зависит от длины ключа, а не от числа маршрутов.
+ * Точное совпадение важнее префикса, из префиксов выигрывает самый длинный.
+ * Таблица заполняется при старте и дальше только читается.
+ *
+ * @param <C> контекст вызова (callback, сообщение)
+ */
+public final class Router<C> {
+
+    @FunctionalInterface
+    public interface Handler<C> {
+        /**
+         * @param key      ключ целиком
+         * @param argStart начало аргументов в {@code key} (сразу за префиксом; для точного совпадения — key.length())
+         */
+        void handle(C call, String key, int argStart);
+    }
+
+    private final Map<String, Handler<C>> exact = new HashMap<>();
+    private final Node<C> root = new Node<>();
+    private Handler<C> fallback;
+
+    public Router<C> exact(String key, Handler<C> handler) {
+        if (exact.putIfAbsent(key, handler) != null) throw new IllegalStateException("Duplicate route: " + key);
+        return this;
+    }
+
+    public Router<C> prefix(String prefix, Handler<C> handler) {
+        Node<C> n = root;
+        for (int i = 0; i < prefix.length(); i++) n = n.childOrCreate(prefix.charAt(i));
+        if (n.handler != null) throw new IllegalStateException("Duplicate prefix route: " + prefix);
+        n.handler = handler;
+        return this;
+    }
+
+    /** Обработчик для ключей без маршрута. */
+    public Router<C> fallback(Handler<C> handler) {
+        this.fallback = handler;
+        return this;
+    }
+
+    /** @return false — маршрута нет и fallback не задан */
+    public boolean dispatch(C call, String key) {
+        Handler<C> h = exact.get(key);
+        if (h != null) {
+            h.handle(call, key, key.length());
+            return true;
+        }
+
+        Handler<C> best = null;
+        int bestEnd = 0;
+        Node<C> n = root;
+        for (int i = 0; i < key.length() && n != null; i++) {
+            n = n.child(key.charAt(i));
+            if (n != null && n.handler != null) {
+                best = n.handler;
+                bestEnd = i + 1;
+            }
+        }
+        if (best != null) {
+            best.handle(call, key, bestEnd);
+            return true;
+        }
+
+        if (fallback != null) {
+            fallback.handle(call, key, 0);
+            return true;
+        }
+        return false;
+    }
+
+    /** Узел дерева: дети в параллельных массивах, их мало (разветвления по 1–3 символа). */
+    private static final class Node<C> {
+        private char[] keys = new char[0];
+        private Node<C>[] children = newArray(0);
+        private Handler<C> handler;
+
+        @SuppressWarnings("unchecked")
+        private static <C> Node<C>[] newArray(int size) {
+            return (Node<C>[]) new Node<?>[size];
+        }
+
+        Node<C> child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        Node<C> childOrCreate(char c) {
+            Node<C> n = child(c);
+            if (n != null) return n;
+            n = new Node<>();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = n;
+            return n;
+        }
+    }
+
+    // ---------- allocation-free argument parsing ----------
+
+    /** Конец аргумента, начинающегося с {@code from}: позиция {@code sep} или длина строки. */
+    public static int argEnd(CharSequence s, int from, char sep) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) == sep) return i;
+        }
+        return s.length();
+    }
+
+    /** Конец токена до первого пробельного символа. */
+    public static int tokenEnd(CharSequence s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) return i;
+        }
+        return s.length();
+    }
+
+    /** Начало следующего токена (пропускает пробелы). */
+    public static int skipSpaces(CharSequence s, int from) {
+        int i = from;
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+
+    /** int из {@code s[from, to)}; {@code def}, если там не число. */
+    public static int parseInt(CharSequence s, int from, int to, int def) {
+        long v = parseLong(s, from, to, Long.MIN_VALUE);
+        return v == Long.MIN_VALUE || v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? def : (int) v;
+    }
+
+    /** long из {@code s[from, to)}; {@code def}, если там не число или оно не влезает в long. */
+    public static long parseLong(CharSequence s, int from, int to, long def) {
+        if (from >= to) return def;
+        boolean negative = s.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to) return def;
+        long v = 0;
+        for (; i < to; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) return def;
+            if (v > (Long.MAX_VALUE - d) / 10) return def;
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+}
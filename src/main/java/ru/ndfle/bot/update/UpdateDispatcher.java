@@ -0,0 +1,218 @@
+package ru.ndfle.bot.update;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Раздаёт апдейты по пользователям: апдейты одного пользователя выполняются строго по очереди,
+ * разные пользователи — параллельно.
+ * <ul>
+ *   <li>{@link Mode#LANES} — N однопоточных «полос», пользователь закреплён за полосой по hash(userId);</li>
+ *   <li>{@link Mode#MAILBOXES} — почтовый ящик на пользователя поверх виртуальных потоков (JDK 21+).</li>
+ * </ul>
+ */
+public class UpdateDispatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    public enum Mode { AUTO, LANES, MAILBOXES }
+
+    private final Mode mode;
+    private final ExecutorService[] lanes;
+    private final ExecutorService virtualExecutor;
+    private final Map<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public UpdateDispatcher(Mode requested, int laneCount) {
+        ExecutorService virtual = requested == Mode.LANES ? null : newVirtualThreadExecutor();
+        if (requested == Mode.MAILBOXES && virtual == null) {
+            log.warn("Virtual threads are not available on this JDK, falling back to {} lanes", laneCount);
+        }
+
+        if (virtual != null) {
+            this.mode = Mode.MAILBOXES;
+            this.virtualExecutor = virtual;
+            this.lanes = new ExecutorService[0];
+        } else {
+            this.mode = Mode.LANES;
+            this.virtualExecutor = null;
+            this.lanes = new ExecutorService[Math.max(1, laneCount)];
+            for (int i = 0; i < lanes.length; i++) {
+                String name = "update-lane-" + i;
+                lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        log.info("Update dispatcher: {}{}", mode, mode == Mode.LANES ? " x" + lanes.length : "");
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor() через reflection: собираемся под 17, работаем и на 21+. */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public void dispatch(Update update, Runnable handler) {
+        dispatch(userKey(update), handler);
+    }
+
+    /** После {@link #close()} апдейт не выполняется: он логируется и отбрасывается. */
+    public void dispatch(long userKey, Runnable handler) {
+        if (closed) {
+            dropped(userKey);
+            return;
+        }
+        inFlight.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                handler.run();
+                processed.increment();
+            } catch (Throwable t) {
+                failed.increment();
+                log.error("Update handling error", t);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        };
+
+        try {
+            if (mode == Mode.LANES) {
+                lanes[Math.floorMod(Long.hashCode(userKey), lanes.length)].execute(task);
+            } else {
+                mailboxes.computeIfAbsent(userKey, Mailbox::new).enqueue(task);
+            }
+        } catch (RejectedExecutionException e) {
+            // close() got in between the check above and the submit
+            inFlight.decrementAndGet();
+            dropped(userKey);
+        }
+    }
+
+    private void dropped(long userKey) {
+        failed.increment();
+        log.warn("Update from {} dropped: dispatcher is closed", userKey);
+    }
+
+    /** Ключ упорядочивания: отправитель апдейта, иначе чат. */
+    public static long userKey(Update u) {
+        if (u.hasMessage()) {
+            var m = u.getMessage();
+            return m.getFrom() != null ? m.getFrom().getId() : m.getChatId();
+        }
+        if (u.hasCallbackQuery() && u.getCallbackQuery().getFrom() != null) {
+            return u.getCallbackQuery().getFrom().getId();
+        }
+        if (u.hasEditedMessage()) return u.getEditedMessage().getChatId();
+        if (u.hasMyChatMember()) return u.getMyChatMember().getFrom().getId();
+        return 0L;
+    }
+
+    /**
+     * Очередь одного пользователя: не больше одной задачи одновременно,
+     * следующая запускается по завершении предыдущей. Пустой ящик удаляется из карты.
+     */
+    private final class Mailbox {
+        private final long key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running = false;
+        private boolean retired = false;
+
+        Mailbox(long key) {
+            this.key = key;
+        }
+
+        void enqueue(Runnable task) {
+            synchronized (this) {
+                if (!retired) {
+                    tasks.add(task);
+                    if (running) return;
+                    running = true;
+                    try {
+                        virtualExecutor.execute(this::drain);
+                    } catch (RejectedExecutionException e) {
+                        tasks.removeLast();
+                        running = false;
+                        throw e;
+                    }
+                    return;
+                }
+            }
+            // Lost the race with drain() retiring this box: go through a fresh one
+            mailboxes.computeIfAbsent(key, Mailbox::new).enqueue(task);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        running = false;
+                        retired = true;
+                        mailboxes.remove(key, this);
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(mode, mode == Mode.LANES ? lanes.length : mailboxes.size(),
+                inFlight.get(), processed.sum(), failed.sum());
+    }
+
+    /** workers — число полос (LANES) или активных ящиков (MAILBOXES). */
+    public record Stats(Mode mode, int workers, int inFlight, long processed, long failed) {}
+
+    /** Дожидается уже принятых апдейтов; новые с этого момента отбрасываются. */
+    @Override
+    public void close() {
+        closed = true;
+        for (ExecutorService lane : lanes) lane.shutdown();
+        if (virtualExecutor != null) {
+            // Mailboxes keep submitting their next task while draining: wait for them to empty first
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            virtualExecutor.shutdown();
+        }
+        try {
+            for (ExecutorService lane : lanes) lane.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
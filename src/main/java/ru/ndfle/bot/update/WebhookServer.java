@@ -0,0 +1,173 @@
+package ru.ndfle.bot.update;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import ru.ndfle.bot.util.Json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Приём апдейтов через webhook на встроенном HTTP-сервере JDK.
+ * Апдейт разбирается, Telegram сразу получает 200, а сам апдейт уходит в {@code sink}
+ * (обычно {@code bot::onUpdateReceived} → {@link UpdateDispatcher}).
+ */
+public class WebhookServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WebhookServer.class);
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    /**
+     * @param port         0 — любой свободный (см. {@link #port()})
+     * @param secretToken  сверяется с заголовком X-Telegram-Bot-Api-Secret-Token; пустой — без проверки
+     * @param threads      потоки, читающие и разбирающие запросы
+     * @param maxBodyBytes запросы больше — 413
+     */
+    public record Settings(int port, String path, String secretToken, int threads, int maxBodyBytes) {}
+
+    private final Settings settings;
+    private final Consumer<Update> sink;
+    private final byte[] secret;
+    private HttpServer server;
+    private ExecutorService workers;
+
+    // Metrics
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder badMethod = new LongAdder();
+    private final LongAdder unauthorized = new LongAdder();
+    private final LongAdder tooLarge = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public WebhookServer(Settings settings, Consumer<Update> sink) {
+        this.settings = settings;
+        this.sink = sink;
+        this.secret = settings.secretToken() == null || settings.secretToken().isBlank()
+                ? null
+                : settings.secretToken().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void start() throws IOException {
+        AtomicInteger n = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, settings.threads()), r -> {
+            Thread t = new Thread(r, "webhook-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(settings.port()), 0);
+        server.createContext(settings.path(), this::handle);
+        server.setExecutor(workers);
+        server.start();
+        log.info("Webhook server listening on :{}{}", port(), settings.path());
+    }
+
+    /** Фактический порт (важно при port = 0). */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                reject(ex, 405, badMethod);
+                return;
+            }
+            if (secret != null) {
+                String header = ex.getRequestHeaders().getFirst(SECRET_HEADER);
+                if (header == null || !MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8))) {
+                    reject(ex, 401, unauthorized);
+                    return;
+                }
+            }
+            String length = ex.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && parseLength(length) > settings.maxBodyBytes()) {
+                reject(ex, 413, tooLarge);
+                return;
+            }
+
+            byte[] body = readLimited(ex.getRequestBody(), settings.maxBodyBytes());
+            if (body == null) {
+                reject(ex, 413, tooLarge);
+                return;
+            }
+
+            Update update;
+            try {
+                update = Json.MAPPER.readValue(body, Update.class);
+            } catch (Exception e) {
+                log.warn("Bad webhook payload: {}", e.toString());
+                reject(ex, 400, malformed);
+                return;
+            }
+
+            // Ack first: Telegram waits for the response before sending the next update to this connection
+            ex.sendResponseHeaders(200, -1);
+            accepted.increment();
+            sink.accept(update);
+        } catch (Exception e) {
+            errors.increment();
+            log.error("Webhook request error", e);
+        }
+    }
+
+    private static void reject(HttpExchange ex, int status, LongAdder counter) throws IOException {
+        counter.increment();
+        // The body may be left unread: the connection can't be reused for the next request
+        ex.getResponseHeaders().set("Connection", "close");
+        ex.sendResponseHeaders(status, -1);
+    }
+
+    private static long parseLength(String v) {
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /** Читает тело целиком; null — если оно больше limit (в т.ч. chunked без Content-Length). */
+    private static byte[] readLimited(InputStream in, int limit) throws IOException {
+        byte[] body = in.readNBytes(limit);
+        if (in.read() != -1) return null;
+        return body;
+    }
+
+    public Stats stats() {
+        return new Stats(accepted.sum(), badMethod.sum(), unauthorized.sum(), tooLarge.sum(), malformed.sum(), errors.sum());
+    }
+
+    /** Отказы по причинам: 405, 401, 413, 400; errors — сбои ввода-вывода и обработчика. */
+    public record Stats(long accepted, long badMethod, long unauthorized, long tooLarge, long malformed, long errors) {
+        public long rejected() {
+            return badMethod + unauthorized + tooLarge + malformed;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(1);
+            log.info("Webhook server stopped: {}", stats());
+        }
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
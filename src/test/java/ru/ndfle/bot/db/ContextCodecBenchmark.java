@@ -0,0 +1,134 @@
+package ru.ndfle.bot.db;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.ndfle.bot.menu.MenuTree;
+import ru.ndfle.bot.model.BackStack;
+import ru.ndfle.bot.util.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бинарный формат контекста против прежнего JSON (Json.toJson/fromJson) на типичном контексте:
+ * back stack из 6 узлов и завершённый опрос БК. Размеры строк печатаются при запуске;
+ * аллокации — с {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextCodecBenchmark {
+    private static final TypeReference<List<String>> LIST_STR = new TypeReference<>() {};
+    private static final TypeReference<Map<String, String>> MAP_STR = new TypeReference<>() {};
+
+    private Path dir;
+    private Database db;
+    private MenuTree menuTree;
+    private ContextCodec codec;
+
+    private BackStack stack;
+    private List<String> stackIds;
+    private Map<String, String> answers;
+
+    private byte[] stackBin;
+    private byte[] answersBin;
+    private String stackJson;
+    private String answersJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("codec-bench");
+        db = new Database(dir.resolve("bench.db").toString());
+        db.init();
+        menuTree = new MenuTree();
+        codec = new ContextCodec(db, menuTree);
+
+        List<String> ids = menuTree.nodeIds();
+        stack = new BackStack();
+        stackIds = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            String id = ids.get(i * 3 % ids.size());
+            stack.push(menuTree.indexOf(id));
+            stackIds.add(0, id);
+        }
+
+        answers = new LinkedHashMap<>();
+        answers.put("income", "Только зарплата");
+        answers.put("family", "Я, супруг(а) и 1 ребёнок");
+        answers.put("urgency", "В течение недели");
+        answers.put("property", "Не более 2х объектов недвижимости");
+        answers.put("deductions", "Имущественный вычет");
+        answers.put("position", "Ведущий инженер-программист");
+        answers.put("real_estate_list", "Квартира в Москве, дача в Подмосковье");
+        // Option labels are registered at startup; the free-text answers stay inline
+        codec.registerAll(ContextCodec.BK_KEY, answers.keySet());
+        codec.registerAll(ContextCodec.BK_VALUE, List.of(
+                "Только зарплата", "Я, супруг(а) и 1 ребёнок", "В течение недели",
+                "Не более 2х объектов недвижимости", "Имущественный вычет"));
+        codec.registerAll(ContextCodec.NODE, ids);
+
+        stackBin = codec.encodeBackStack(stack);
+        answersBin = codec.encodeAnswers(answers);
+        stackJson = Json.toJson(stackIds);
+        answersJson = Json.toJson(answers);
+        System.out.printf("%nrow bytes: binary %d (stack %d + answers %d), json %d (stack %d + answers %d)%n",
+                stackBin.length + answersBin.length, stackBin.length, answersBin.length,
+                utf8(stackJson) + utf8(answersJson), utf8(stackJson), utf8(answersJson));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        try (var files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object encodeBinary() {
+        return new Object[]{codec.encodeBackStack(stack), codec.encodeAnswers(answers)};
+    }
+
+    @Benchmark
+    public Object encodeJson() {
+        return new Object[]{Json.toJson(stackIds), Json.toJson(answers)};
+    }
+
+    @Benchmark
+    public Object decodeBinary() {
+        BackStack s = new BackStack();
+        Map<String, String> a = new LinkedHashMap<>();
+        codec.decodeBackStack(stackBin, s);
+        codec.decodeAnswers(answersBin, a);
+        return new Object[]{s, a};
+    }
+
+    @Benchmark
+    public Object decodeJson() {
+        return new Object[]{Json.fromJson(stackJson, LIST_STR, List.of()), Json.fromJson(answersJson, MAP_STR, Map.of())};
+    }
+
+    private static int utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
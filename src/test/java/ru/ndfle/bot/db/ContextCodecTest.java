@@ -0,0 +1,88 @@
+package ru.ndfle.bot.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.ndfle.bot.menu.MenuTree;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ContextCodecTest {
+    private static final Query<Integer> ORDINAL = Query.of(
+            "SELECT ordinal FROM codec_dictionary WHERE kind=? AND value=?", rs -> rs.getInt(1));
+
+    @TempDir
+    Path dir;
+    private Database db;
+    private MenuTree menuTree;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        db = new Database(dir.resolve("codec.db").toString());
+        db.init();
+        menuTree = new MenuTree();
+    }
+
+    @AfterEach
+    void tearDown() {
+        db.close();
+    }
+
+    @Test
+    void newOrdinalCommitsWithTheRowThatUsesIt() throws Exception {
+        ContextCodec codec = new ContextCodec(db, menuTree);
+        byte[] blob = db.write(c -> codec.encodeAnswers(Map.of("income", "x"))).join();
+
+        assertEquals(0, ordinal("income"));
+        Map<String, String> decoded = new LinkedHashMap<>();
+        new ContextCodec(db, menuTree).decodeAnswers(blob, decoded);
+        assertEquals(Map.of("income", "x"), decoded);
+    }
+
+    @Test
+    void rolledBackCommandDoesNotLoseTheOrdinal() throws Exception {
+        ContextCodec codec = new ContextCodec(db, menuTree);
+        CompletionException failed = assertThrows(CompletionException.class, () -> db.write(c -> {
+            codec.encodeAnswers(Map.of("family", "y"));
+            throw new SQLException("row insert failed");
+        }).join());
+        assertEquals("row insert failed", failed.getCause().getMessage());
+        assertNull(ordinal("family"));
+
+        // The ordinal was handed out in memory; the next row using it writes the dictionary entry again
+        byte[] blob = db.write(c -> codec.encodeAnswers(Map.of("family", "y"))).join();
+        assertEquals(0, ordinal("family"));
+
+        Map<String, String> decoded = new LinkedHashMap<>();
+        new ContextCodec(db, menuTree).decodeAnswers(blob, decoded);
+        assertEquals(Map.of("family", "y"), decoded);
+    }
+
+    @Test
+    void registerAllOutsideTheWriterIsDurableOnReturn() throws Exception {
+        new ContextCodec(db, menuTree).registerAll(ContextCodec.BK_VALUE, List.of("a", "b"));
+        assertEquals(0, ordinal(ContextCodec.BK_VALUE, "a"));
+        assertEquals(1, ordinal(ContextCodec.BK_VALUE, "b"));
+    }
+
+    private Integer ordinal(String key) throws SQLException {
+        return ordinal(ContextCodec.BK_KEY, key);
+    }
+
+    private Integer ordinal(String kind, String value) throws SQLException {
+        return db.queryOne(ORDINAL, ps -> {
+            ps.setString(1, kind);
+            ps.setString(2, value);
+        });
+    }
+}
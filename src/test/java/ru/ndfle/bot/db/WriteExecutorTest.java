@@ -0,0 +1,79 @@
+package ru.ndfle.bot.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteExecutorTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedCommandIsCountedOnceAndOthersCommit() throws Exception {
+        Database db = new Database(dir.resolve("writer.db").toString());
+        try {
+            db.init();
+            CompletableFuture<Integer> bad = db.write(c -> {
+                throw new SQLException("boom");
+            });
+            CompletableFuture<Integer> good = db.write(c -> 1);
+            assertThrows(CompletionException.class, bad::join);
+            assertEquals(1, good.join());
+            assertEquals(1, db.writerStats().failed());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void errorInCommandFailsOnlyThatCommand() throws Exception {
+        Database db = new Database(dir.resolve("error.db").toString());
+        try {
+            db.init();
+            CompletableFuture<Integer> bad = db.write(c -> {
+                throw new AssertionError("boom");
+            });
+            CompletableFuture<Integer> good = db.write(c -> 1);
+            CompletionException e = assertThrows(CompletionException.class, bad::join);
+            assertInstanceOf(AssertionError.class, e.getCause());
+            assertEquals(1, good.join());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void failingHookDoesNotBlockFutures() throws Exception {
+        Database db = new Database(dir.resolve("hook.db").toString());
+        try {
+            db.init();
+            CompletableFuture<Integer> first = db.write(c -> {
+                db.afterCommit(() -> {
+                    throw new IllegalStateException("hook");
+                });
+                return 1;
+            });
+            assertEquals(1, first.join());
+            assertEquals(2, db.write(c -> 2).join());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void submitAfterCloseFails() throws Exception {
+        Database db = new Database(dir.resolve("closed.db").toString());
+        db.init();
+        db.close();
+        CompletionException e = assertThrows(CompletionException.class, () -> db.write(c -> 1).join());
+        assertInstanceOf(SQLException.class, e.getCause());
+    }
+}
@@ -0,0 +1,69 @@
+package ru.ndfle.bot.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NotificationServiceTest {
+
+    private static final String HUGE = "<b>Отзыв</b>\n<i>" + "очень длинный комментарий ".repeat(300) + "</i>";
+
+    @Test
+    void oversizedImmediateEventIsTruncated() {
+        List<String> sent = send(NotificationService.Mode.IMMEDIATE, 1, HUGE);
+        assertEquals(1, sent.size());
+        assertFits(sent.get(0));
+        assertTrue(sent.get(0).endsWith("…</i>"), sent.get(0));
+    }
+
+    @Test
+    void oversizedSingleEventDigestIsTruncated() {
+        NotificationService ns = new NotificationService(NotificationService.Mode.DIGEST, 60_000, 10);
+        List<String> sent = start(ns);
+        ns.notify(1, HUGE, null, false);
+        ns.close();
+        assertEquals(1, sent.size());
+        assertFits(sent.get(0));
+    }
+
+    @Test
+    void oversizedEventInsideDigestGoesAloneTruncated() {
+        List<String> sent = send(NotificationService.Mode.DIGEST, 3, "первое", HUGE, "третье");
+        assertEquals(2, sent.size());
+        sent.forEach(NotificationServiceTest::assertFits);
+        assertTrue(sent.stream().anyMatch(m -> m.contains("первое") && m.contains("третье")), sent.toString());
+    }
+
+    @Test
+    void truncationKeepsTagsAndEntitiesWhole() {
+        String html = "<b>a &amp; <a href=\"https://x\">" + "z".repeat(100) + "</a></b>";
+        String cut = NotificationService.truncateHtml(html, 50);
+        assertTrue(cut.length() <= 50, cut);
+        assertTrue(cut.endsWith("…</a></b>"), cut);
+        assertTrue(cut.startsWith("<b>a &amp; <a href=\"https://x\">"), cut);
+        assertEquals(html, NotificationService.truncateHtml(html, html.length()));
+    }
+
+    private static List<String> send(NotificationService.Mode mode, int maxEvents, String... events) {
+        NotificationService ns = new NotificationService(mode, 60_000, maxEvents);
+        List<String> sent = start(ns);
+        for (String e : events) ns.notify(1, e, null, false);
+        ns.close();
+        return sent;
+    }
+
+    private static List<String> start(NotificationService ns) {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        ns.start((chatId, html, markup) -> sent.add(html));
+        return sent;
+    }
+
+    private static void assertFits(String html) {
+        assertTrue(html.length() <= NotificationService.MAX_TEXT, "length " + html.length());
+    }
+}
@@ -0,0 +1,92 @@
+package ru.ndfle.bot.update;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Маршрутизация callback data через {@link Router} против прежней цепочки equals/startsWith
+ * на типичной смеси нажатий: навигация, ответы БК, админка, отзывы, видео.
+ * Таблица маршрутов та же, что в EkaterinaBot.callbackRoutes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+    private static final String[] MIX = {
+            "N:main", "N:ndfl_3", "B", "N:deductions", "M", "N:property_tax",
+            "BK:START", "BK:0:1", "BK:1:0", "BK:2:3", "BK:3:1", "BK:4:2",
+            "A:UP:S:1024", "A:LIST", "A:DEL:42",
+            "UPLOAD:START", "REVIEW:STAR:5", "REVIEW:STAR:2",
+            "MEDIA:VIDEO2", "MEDIA:VIDEO1_XML", "MEDIA:VIDEO1_FL", "UNKNOWN:1",
+    };
+    private static final int OPS = 22;
+
+    private Router<Blackhole> router;
+
+    @Setup
+    public void setUp() {
+        if (MIX.length != OPS) throw new IllegalStateException("OPS must match MIX");
+        Router.Handler<Blackhole> h = (bh, key, arg) -> bh.consume(arg);
+        router = new Router<Blackhole>()
+                .exact("B", h)
+                .exact("M", h)
+                .prefix("N:", h)
+                .exact("BK:START", h)
+                .prefix("BK:", h)
+                .prefix("A:", h)
+                .prefix("A:UP:S:", h)
+                .exact("UPLOAD:START", h)
+                .prefix("REVIEW:STAR:", h)
+                .exact("MEDIA:VIDEO2", h)
+                .exact("MEDIA:VIDEO1_XML", h)
+                .exact("MEDIA:VIDEO1_FL", h)
+                .fallback(h);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void router(Blackhole bh) {
+        for (String data : MIX) router.dispatch(bh, data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void chain(Blackhole bh) {
+        for (String data : MIX) chain(bh, data);
+    }
+
+    /** Прежний handleCallback: ветки в порядке исходного кода, аргументы — substring/split. */
+    private static void chain(Blackhole bh, String data) {
+        if (data.equals("B")) { bh.consume(1); return; }
+        if (data.equals("M")) { bh.consume(1); return; }
+        if (data.startsWith("N:")) { bh.consume(data.substring(2)); return; }
+        if (data.equals("BK:START")) { bh.consume(8); return; }
+        if (data.startsWith("BK:")) {
+            String[] p = data.split(":");
+            if (p.length == 3) bh.consume(Integer.parseInt(p[1]));
+            return;
+        }
+        if (data.startsWith("A:")) { bh.consume(data); return; }
+        if (data.equals("UPLOAD:START")) { bh.consume(12); return; }
+        if (data.startsWith("REVIEW:STAR:")) { bh.consume(data.substring(12)); return; }
+        if (data.equals("MEDIA:VIDEO2")) { bh.consume(2); return; }
+        if (data.equals("MEDIA:VIDEO1_XML")) { bh.consume(3); return; }
+        if (data.equals("MEDIA:VIDEO1_FL")) { bh.consume(4); return; }
+        bh.consume(0);
+    }
+}
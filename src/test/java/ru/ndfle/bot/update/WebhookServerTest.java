@@ -0,0 +1,89 @@
+package ru.ndfle.bot.update;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebhookServerTest {
+    private static final String SECRET = "s3cret";
+    private static final String UPDATE = """
+            {"update_id":7,"message":{"message_id":2,"date":0,"chat":{"id":42,"type":"private"},"text":"/start"}}""";
+
+    private final BlockingQueue<Update> received = new LinkedBlockingQueue<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private WebhookServer server;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new WebhookServer(new WebhookServer.Settings(0, "/telegram", SECRET, 2, 1024), received::add);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    @Test
+    void acksAndDispatchesUpdate() throws Exception {
+        assertEquals(200, post(UPDATE, SECRET));
+        Update update = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(update);
+        assertEquals(7, update.getUpdateId());
+        assertEquals(42L, update.getMessage().getChatId());
+        assertEquals(new WebhookServer.Stats(1, 0, 0, 0, 0, 0), server.stats());
+    }
+
+    @Test
+    void wrongSecretIsUnauthorized() throws Exception {
+        assertEquals(401, post(UPDATE, "nope"));
+        assertEquals(401, post(UPDATE, null));
+        assertTrue(received.isEmpty());
+        assertEquals(2, server.stats().unauthorized());
+    }
+
+    @Test
+    void wrongMethodIsNotAllowed() throws Exception {
+        HttpResponse<Void> r = client.send(request().GET().build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(405, r.statusCode());
+        assertEquals(1, server.stats().badMethod());
+    }
+
+    @Test
+    void oversizedBodyIsRejected() throws Exception {
+        String big = "{\"update_id\":1,\"pad\":\"" + "x".repeat(2048) + "\"}";
+        assertEquals(413, post(big, SECRET));
+        assertTrue(received.isEmpty());
+        assertEquals(1, server.stats().tooLarge());
+    }
+
+    @Test
+    void malformedJsonIsBadRequest() throws Exception {
+        assertEquals(400, post("{\"update_id\":", SECRET));
+        assertTrue(received.isEmpty());
+        assertEquals(1, server.stats().malformed());
+    }
+
+    private int post(String body, String secret) throws Exception {
+        HttpRequest.Builder b = request().POST(HttpRequest.BodyPublishers.ofString(body));
+        if (secret != null) b.header("X-Telegram-Bot-Api-Secret-Token", secret);
+        return client.send(b.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private HttpRequest.Builder request() {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + "/telegram"));
+    }
+}